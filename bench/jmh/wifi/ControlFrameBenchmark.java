@@ -0,0 +1,105 @@
+package wifi;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The control frames, which are the part of the steady state that allocates
+ * nothing: encoding ACKs, block ACKs, CTSs and beacons in place, and the
+ * {@link Receiver} taking ACKs, CTSs and beacons and answering RTSs and block
+ * ACK requests. Data frames are not covered; each one received gets a packet
+ * of its own, as it outlives the frame. Run with {@code -prof gc}, every
+ * benchmark here should report 0 B/op. The station runs on a
+ * {@link VirtualClock} that is never started, so its replies are posted to
+ * the {@link Responder} but never sent, each replacing the last.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ControlFrameBenchmark {
+    private Receiver receiver;
+    private final Packet ack = new Packet(0);
+    private final Packet blockAck = new Packet(Long.BYTES);
+    private final Packet cts = new Packet(Integer.BYTES);
+    private final Packet beacon = new Packet(Long.BYTES);
+    private byte[] incomingAck, incomingCts, incomingBeacon, rts, blockAckRequest;
+    private int seq;
+
+    @Setup
+    public void setup() {
+        VirtualClock clock = new VirtualClock(1);
+        SimulatedMedium medium = new SimulatedMedium(clock, 1, 0.0, 1);
+        LinkLayer ll = new LinkLayer((short) 1, new PrintWriter(OutputStream.nullOutputStream()), medium.attach(), clock);
+        ll.command(5, 1);
+        this.receiver = ll.receiver;
+
+        this.incomingAck = new Packet(Packet.ACK, 0, (short) 1, (short) 2, null, 0).asBytes();
+        this.incomingCts = new Packet(Integer.BYTES).encodeReservation(Packet.CTS, 0, (short) 1, (short) 2, 1000).asBytes();
+        this.incomingBeacon = new Packet((short) 2, 0).asBytes();
+        this.rts = new Packet(Integer.BYTES).encodeReservation(Packet.RTS, 0, (short) 1, (short) 2, 5000).asBytes();
+        // agree on block ACKs once, as the sender does before its first burst
+        byte[] setup = { 0, 8, 1 };
+        this.receiver.handle(new Packet(Packet.BLOCK_ACK_REQ, 0, (short) 1, (short) 2, setup, setup.length).asBytes());
+        this.blockAckRequest = new Packet(Packet.BLOCK_ACK_REQ, 0, (short) 1, (short) 2, null, 0).asBytes();
+    }
+
+    @Benchmark
+    public Packet encodeAck() {
+        return this.ack.encode(Packet.ACK, this.seq++, (short) 1, (short) 2, null, 0, 0);
+    }
+
+    @Benchmark
+    public Packet encodeBlockAck() {
+        return this.blockAck.encodeBlockAck((short) 1, (short) 2, this.seq++, this.seq);
+    }
+
+    @Benchmark
+    public Packet encodeCts() {
+        return this.cts.encodeReservation(Packet.CTS, this.seq++, (short) 1, (short) 2, 1000);
+    }
+
+    @Benchmark
+    public Packet encodeBeacon() {
+        return this.beacon.encodeBeacon((short) 2, this.seq++);
+    }
+
+    @Benchmark
+    public void receiveAck() {
+        this.receiver.handle(this.incomingAck);
+    }
+
+    @Benchmark
+    public void receiveCts() {
+        this.receiver.handle(this.incomingCts);
+    }
+
+    @Benchmark
+    public void receiveBeacon() {
+        this.receiver.handle(this.incomingBeacon);
+    }
+
+    @Benchmark
+    public void answerRts() {
+        this.receiver.handle(this.rts);
+    }
+
+    @Benchmark
+    public void answerBlockAckRequest() {
+        this.receiver.handle(this.blockAckRequest);
+    }
+}
@@ -0,0 +1,57 @@
+package wifi;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Sender#enqueue} with several application threads sending at once.
+ * Every op queues one message and takes one packet back off the queue, so
+ * the queue never fills. The station runs on a {@link VirtualClock} that is
+ * never started, so its own threads stay parked and only the benchmark
+ * threads touch the queue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnqueueBenchmark {
+    private LinkLayer ll;
+    private byte[] payload;
+
+    @Setup
+    public void setup() {
+        VirtualClock clock = new VirtualClock(1);
+        SimulatedMedium medium = new SimulatedMedium(clock, 1, 0.0, 1);
+        this.ll = new LinkLayer((short) 1, new PrintWriter(OutputStream.nullOutputStream()), medium.attach(), clock);
+        this.payload = new byte[100];
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Packet enqueueContended() {
+        this.ll.sender.enqueue((short) 2, this.payload, this.payload.length);
+        return this.ll.sender.take();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Packet enqueueAlone() {
+        this.ll.sender.enqueue((short) 2, this.payload, this.payload.length);
+        return this.ll.sender.take();
+    }
+}
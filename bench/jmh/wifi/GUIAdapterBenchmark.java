@@ -0,0 +1,43 @@
+package wifi;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link JavaGUIAdapter#pollForStreamOutput()} picking up a line of log
+ * output. The layer runs on a {@link VirtualClock} that is never started, so
+ * it only prints what the benchmark asks for.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GUIAdapterBenchmark {
+    private JavaGUIAdapter adapter;
+
+    @Setup
+    public void setup() {
+        VirtualClock clock = new VirtualClock(1);
+        this.adapter = new JavaGUIAdapter();
+        this.adapter.initializeLinkLayer((short) 1, new SimulatedMedium(clock, 1, 0.0, 1).attach());
+        this.adapter.pollForStreamOutput();
+    }
+
+    @Benchmark
+    public byte[] pollForStreamOutput() {
+        this.adapter.sendCommand(2, 0);
+        return this.adapter.pollForStreamOutput();
+    }
+}
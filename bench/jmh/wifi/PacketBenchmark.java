@@ -0,0 +1,87 @@
+package wifi;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Building, parsing and checking {@link Packet}s of a few payload sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+    @Param({ "16", "100", "2038" })
+    public int size;
+
+    private byte[] payload;
+    private byte[] frame;
+    private byte[] overheard;
+    private Packet incoming;
+    private Packet ack;
+    private Packet resend;
+    private int seq;
+
+    @Setup
+    public void setup() {
+        this.payload = new byte[this.size];
+        this.frame = new Packet(Packet.DATA, 7, (short) 1, (short) 2, this.payload, this.size).asBytes();
+        this.overheard = new Packet(Packet.DATA, 7, (short) 3, (short) 2, this.payload, this.size).asBytes();
+        this.incoming = new Packet(0);
+        this.ack = new Packet(0);
+        this.resend = new Packet(Packet.DATA, 7, (short) 1, (short) 2, this.payload, this.size);
+    }
+
+    @Benchmark
+    public Packet construct() {
+        return new Packet(Packet.DATA, this.seq++, (short) 1, (short) 2, this.payload, this.size);
+    }
+
+    @Benchmark
+    public Packet encodeAckInPlace() {
+        return this.ack.encode(Packet.ACK, this.seq++, (short) 1, (short) 2, null, 0, 0);
+    }
+
+    @Benchmark
+    public void parse(Blackhole bh) {
+        Packet pkt = this.incoming.wrap(this.frame);
+        bh.consume(pkt.getFrameType());
+        bh.consume(pkt.getSeqNum());
+        bh.consume(pkt.getDest());
+        bh.consume(pkt.getSource());
+        bh.consume(pkt.isResend());
+    }
+
+    @Benchmark
+    public boolean isValid() {
+        return this.incoming.wrap(this.frame).isValid();
+    }
+
+    @Benchmark
+    public boolean skipOverheard() {
+        Packet pkt = this.incoming.wrap(this.overheard);
+        return pkt.isAddressedTo((short) 1) && pkt.isValid();
+    }
+
+    @Benchmark
+    public int flagAsResend() {
+        // clear the bit behind the codec's back; only the cost matters here
+        this.resend.asBytes()[0] &= ~0x10;
+        this.resend.flagAsResend();
+        return this.resend.getCrc();
+    }
+}
@@ -0,0 +1,114 @@
+package wifi;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The {@link Receiver} dispatch for the kinds of frame that do not need a
+ * reply (a reply is sent by the receiver's next step, which never runs), and
+ * broadcasts taken from the receiver by the layer above. The station runs on
+ * a {@link VirtualClock} that is never started, so its own threads stay
+ * parked.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiverBenchmark {
+    private Receiver receiver;
+    private byte[] overheard;
+    private byte[] beacon;
+    private byte[] ack;
+    private byte[] duplicate;
+    private LinkLayer ll;
+    /** A broadcast, and a broadcast message sent in fragments */
+    private byte[] message;
+    private byte[][] fragments;
+    /** recv() replaces the buffer of the first, recvInto() fills that of the second */
+    private final Transmission received = new Transmission((short) 0, (short) 0, null);
+    private final Transmission transmission = new Transmission((short) 0, (short) 0, new byte[Packet.MAX_DATA_SIZE * 4]);
+
+    @Setup
+    public void setup() {
+        VirtualClock clock = new VirtualClock(1);
+        SimulatedMedium medium = new SimulatedMedium(clock, 1, 0.0, 1);
+        LinkLayer ll = new LinkLayer((short) 1, new PrintWriter(OutputStream.nullOutputStream()), medium.attach(), clock);
+        this.receiver = ll.receiver;
+        this.ll = ll;
+
+        byte[] payload = new byte[100];
+        this.overheard = new Packet(Packet.DATA, 0, (short) 3, (short) 2, payload, payload.length).asBytes();
+        this.beacon = new Packet((short) 2, 0).asBytes();
+        this.ack = new Packet(Packet.ACK, 0, (short) 1, (short) 2, null, 0).asBytes();
+        // a broadcast needs no ACK; flagged as a resend, it is a duplicate after the first one
+        Packet resend = new Packet(Packet.DATA, 0, (short) -1, (short) 2, payload, payload.length);
+        resend.flagAsResend();
+        this.duplicate = resend.asBytes();
+        this.receiver.handle(this.duplicate);
+        this.receiver.nextPacket();
+
+        // first sends are never duplicates, so the same frames are delivered every time
+        byte[] large = new byte[1000];
+        this.message = new Packet(Packet.DATA, 1, (short) -1, (short) 2, large, large.length).asBytes();
+        byte[] whole = new byte[3 * Packet.FRAGMENT_SIZE];
+        this.fragments = new byte[3][];
+        for (int i = 0; i < 3; i++) {
+            this.fragments[i] = Packet.fragment(i, (short) -1, (short) 3, whole, i * Packet.FRAGMENT_SIZE,
+                    Packet.FRAGMENT_SIZE, i, i < 2, false).asBytes();
+        }
+    }
+
+    @Benchmark
+    public void overheardData() {
+        this.receiver.handle(this.overheard);
+    }
+
+    @Benchmark
+    public void beacon() {
+        this.receiver.handle(this.beacon);
+    }
+
+    @Benchmark
+    public void unexpectedAck() {
+        this.receiver.handle(this.ack);
+    }
+
+    @Benchmark
+    public void duplicateData() {
+        this.receiver.handle(this.duplicate);
+    }
+
+    @Benchmark
+    public int recvMessage() {
+        this.receiver.handle(this.message);
+        return this.ll.recv(this.received);
+    }
+
+    @Benchmark
+    public int recvMessageInto() {
+        this.receiver.handle(this.message);
+        return this.ll.recvInto(this.transmission);
+    }
+
+    @Benchmark
+    public int recvFragmentedInto() {
+        for (byte[] fragment : this.fragments) {
+            this.receiver.handle(fragment);
+        }
+        return this.ll.recvInto(this.transmission);
+    }
+}
@@ -0,0 +1,52 @@
+package wifi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Stream throughput of the {@link CircularByteBuffer} that carries log output
+ * to the GUI.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamBenchmark {
+    @Param({ "64", "1024" })
+    public int chunk;
+
+    private OutputStream out;
+    private InputStream in;
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        CircularByteBuffer cbb = new CircularByteBuffer(64 * 1024);
+        this.out = cbb.getOutputStream();
+        this.in = cbb.getInputStream();
+        this.data = new byte[this.chunk];
+    }
+
+    /** One chunk in and back out of the buffer */
+    @Benchmark
+    public int circularBuffer() throws IOException {
+        this.out.write(this.data);
+        return this.in.read(this.data);
+    }
+}
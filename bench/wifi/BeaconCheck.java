@@ -0,0 +1,40 @@
+package wifi;
+
+/**
+ * Checks that turning beacons off (command 3 with -1) leaves the medium
+ * quiet. Two idle stations run on a {@link VirtualClock} for a while with
+ * beacons on, then beacons are turned off. After one beacon interval, for
+ * the beacon each station had already scheduled, nothing may be sent.
+ * Prints the transmissions seen with beacons on and after they were turned
+ * off, and exits with status 1 if the second count is not 0.
+ * <p>
+ * Usage: {@code BeaconCheck [seconds=30] [log=]}
+ * where {@code log} sends the stations' output to stdout.
+ */
+public class BeaconCheck {
+    public static void main(String[] args) throws InterruptedException {
+        Options opts = new Options(args, "seconds", "log");
+        long period = 1000 * opts.getLong("seconds", 30);
+
+        VirtualClock clock = new VirtualClock(42);
+        SimulatedMedium medium = new SimulatedMedium(clock, 1, 0.0, 42);
+        LinkLayer[] layers = new LinkLayer[2];
+        for (int i = 0; i < layers.length; i++) {
+            layers[i] = new LinkLayer((short) (i + 1), opts.output(), medium.attach(), clock);
+        }
+
+        clock.runUntil(period);
+        long on = medium.getTransmissions();
+        long interval = layers[0].beaconFrequency;
+        for (LinkLayer ll : layers) {
+            ll.command(3, -1);
+        }
+        clock.runUntil(clock.time() + interval);
+        long settled = medium.getTransmissions();
+        clock.runUntil(clock.time() + period);
+        long off = medium.getTransmissions() - settled;
+
+        System.out.println("transmissions in " + period / 1000 + " s with beacons on: " + on + ", off: " + off);
+        System.exit(off == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,70 @@
+package wifi;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Reports how much airtime {@link Compression} saves on representative
+ * payloads at the RF layer's {@link SimulatedMedium#MS_PER_BYTE}, and what it
+ * costs in CPU time. Payloads that do not shrink are sent uncompressed, just
+ * like {@code Sender.enqueue()} does.
+ * <p>
+ * Usage: {@code CompressionBench [iterations=20000]}
+ */
+public class CompressionBench {
+    public static void main(String[] args) {
+        int iterations = new Options(args, "iterations").getInt("iterations", 20_000);
+
+        Map<String, byte[]> payloads = new LinkedHashMap<>();
+        payloads.put("chat", text("hey, are you coming to the meeting this afternoon? let me know"));
+        payloads.put("short chat", text("ok thanks"));
+        payloads.put("json", text("{\"id\":4711,\"type\":\"reading\",\"name\":\"sensor-12\",\"value\":21.5,"
+                + "\"time\":1718031234,\"status\":\"ok\"}"));
+        payloads.put("log line", text("2024-06-10 14:53:54 INFO  wifi.Sender - Transmitting packet to MAC 2, "
+                + "collision window 3, retries 0, queue length 2"));
+        payloads.put("http", text("GET /index.html HTTP/1.1\r\nHost: www.example.com\r\nAccept: text/html\r\n"
+                + "Content-Type: text/plain; charset=utf-8\r\nConnection: keep-alive\r\n\r\n"));
+        StringBuilder prose = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            prose.append("The quick brown fox jumps over the lazy dog while the station waits for the channel. ");
+        }
+        payloads.put("prose 1.7K", text(prose.toString()));
+        byte[] noise = new byte[200];
+        new Random(42).nextBytes(noise);
+        payloads.put("random", noise);
+
+        System.out.printf("%-12s %6s %9s %10s %10s %7s %9s%n",
+                "payload", "bytes", "frame", "airtime", "with comp", "saved", "us/msg");
+        for (Map.Entry<String, byte[]> entry : payloads.entrySet()) {
+            byte[] data = entry.getValue();
+            Packet plain = new Packet(Packet.DATA, 0, (short) 2, (short) 1, data, data.length);
+            byte[] compressed = Compression.compress(data, data.length);
+            Packet sent = compressed == null || compressed.length + Packet.FLAGS_SIZE >= data.length ? plain
+                    : Packet.fragment(0, (short) 2, (short) 1, compressed, 0, compressed.length, 0, false, true);
+
+            long before = airtime(plain), after = airtime(sent);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                byte[] z = Compression.compress(data, data.length);
+                if (z != null) {
+                    Compression.decompress(z, Packet.MAX_MESSAGE_SIZE);
+                }
+            }
+            double micros = (System.nanoTime() - start) / 1e3 / iterations;
+
+            System.out.printf("%-12s %6d %9s %8d ms %8d ms %6.1f%% %9.1f%n", entry.getKey(), data.length,
+                    plain.size() + ">" + sent.size(), before, after, 100.0 * (before - after) / before, micros);
+        }
+    }
+
+    private static byte[] text(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Time the frame spends on the air at the RF layer's rate */
+    private static long airtime(Packet pkt) {
+        return (long) (pkt.size() + SimulatedMedium.HEADER_BYTES) * SimulatedMedium.MS_PER_BYTE;
+    }
+}
@@ -0,0 +1,34 @@
+package wifi;
+
+import java.util.Random;
+
+/**
+ * Checks that flagging a frame as a resend keeps its checksum valid. For
+ * every payload size up to {@link Packet#MAX_DATA_SIZE}, a frame of random
+ * type, sequence number and data is flagged once, which must leave it valid
+ * and flagged, then flagged again, which must leave it valid. Prints the
+ * number of frames that failed either check, which should be 0.
+ * <p>
+ * Usage: {@code CrcCheck [seed=1]}
+ */
+public class CrcCheck {
+    public static void main(String[] args) {
+        Options opts = new Options(args, "seed");
+        Random random = new Random(opts.getLong("seed", 1));
+        int bad = 0;
+        for (int size = 0; size <= Packet.MAX_DATA_SIZE; size++) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            Packet pkt = new Packet(random.nextInt(8), random.nextInt(Packet.SEQ_SPACE), (short) 3, (short) 4, data, size);
+            pkt.flagAsResend();
+            if (!pkt.isValid() || !pkt.isResend()) {
+                bad++;
+            }
+            pkt.flagAsResend();
+            if (!pkt.isValid()) {
+                bad++;
+            }
+        }
+        System.out.println("frames failing the checksum after a resend flag: " + bad);
+    }
+}
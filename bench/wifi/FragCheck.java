@@ -0,0 +1,88 @@
+package wifi;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that messages of every size around the fragment boundaries arrive
+ * whole. One station sends another a message of each size in turn, from a
+ * few bytes to more than {@link Packet#MAX_MESSAGE_SIZE} (which is cut
+ * short), on a {@link VirtualClock} with the given frame loss. The data is
+ * drawn from a four-letter alphabet, so it is about as compressible as
+ * text. Each message that arrives is compared with what was sent.
+ * <p>
+ * Usage: {@code FragCheck [loss=0.05] [log=] [command=cmd:val]...}
+ * where every {@code command} is passed to {@code LinkLayer.command()} on
+ * both stations and {@code log} sends their output to stdout.
+ */
+public class FragCheck {
+    /** Message sizes, around one, two and many fragments */
+    private static final int[] SIZES = { 5000, 10, 2037, 2038, 2039, 4074, 4075, 20000, 300000 };
+
+    public static void main(String[] args) throws InterruptedException {
+        Options opts = new Options(args, "loss", "log", "command");
+        double lossRate = opts.getDouble("loss", 0.05);
+
+        VirtualClock clock = new VirtualClock(1);
+        SimulatedMedium medium = new SimulatedMedium(clock, 1, lossRate, 7);
+        PrintWriter out = opts.output();
+        LinkLayer sender = new LinkLayer((short) 1, out, medium.attach(), clock);
+        LinkLayer receiver = new LinkLayer((short) 2, out, medium.attach(), clock);
+        opts.apply(sender);
+        opts.apply(receiver);
+
+        List<byte[]> received = Collections.synchronizedList(new ArrayList<>());
+        clock.start(() -> {
+            while (true) {
+                Transmission t = new Transmission((short) 0, (short) 0, null);
+                if (receiver.recv(t) < 0) {
+                    return;
+                }
+                received.add(t.getBuf());
+            }
+        }, "Consumer 2");
+        clock.start(() -> {
+            Random random = new Random(3);
+            for (int size : SIZES) {
+                byte[] data = message(random, size);
+                try {
+                    while (sender.send((short) 2, data, size) < 0) {
+                        sender.sleep(10);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "Producer 1");
+
+        clock.runUntil(2_000_000);
+        Random random = new Random(3);
+        int whole = 0;
+        for (int i = 0; i < SIZES.length && i < received.size(); i++) {
+            byte[] sent = message(random, SIZES[i]);
+            byte[] expected = Arrays.copyOf(sent, Math.min(SIZES[i], Packet.MAX_MESSAGE_SIZE));
+            if (Arrays.equals(expected, received.get(i))) {
+                whole++;
+            } else {
+                System.out.println("message " + i + " of " + SIZES[i] + " bytes arrived as "
+                        + received.get(i).length + " bytes that differ");
+            }
+        }
+        System.out.println("received: " + received.size() + "/" + SIZES.length + ", whole: " + whole);
+        System.out.println("medium: " + medium);
+        System.exit(0);
+    }
+
+    /** Returns the next message of the given size */
+    private static byte[] message(Random random, int size) {
+        byte[] data = new byte[size];
+        for (int k = 0; k < size; k++) {
+            data[k] = (byte) ('a' + random.nextInt(4));
+        }
+        return data;
+    }
+}
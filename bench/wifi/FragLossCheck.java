@@ -0,0 +1,147 @@
+package wifi;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rf.RF;
+
+/**
+ * Checks that a message reported delivered really arrived, when messages
+ * are sent in fragments over a lossy medium. As in {@link LoadTest}, station
+ * {@code i} sends its messages to station {@code i + 1}, on a
+ * {@link VirtualClock}. Every message carries its sender and number, so the
+ * receivers can tell which arrived. Once every outcome is in, the run
+ * reports how many messages were acknowledged but never received, which
+ * should be 0, next to how many were acknowledged, failed and received.
+ * With more senders than {@link Receiver#MAX_REASSEMBLIES}, it also covers
+ * messages given up on when the reassembly table is full.
+ * <p>
+ * Then one station, with beacons off, sends a message of the same size to a
+ * MAC address nobody has. Once its first fragment is given up on the
+ * message has failed, so the rest must never go out: the run counts the
+ * transmissions, which may be no more than one frame and one window setup
+ * request with their retries. It exits with status 1 if a message was
+ * acknowledged but never received, or the failed message took more.
+ * <p>
+ * Usage: {@code FragLossCheck [stations=3] [messages=10] [payload=5000]
+ * [loss=0.0] [log=] [command=cmd:val]...}
+ * where every {@code command} is passed to {@code LinkLayer.command()} on each
+ * station and {@code log} sends the stations' output to stdout.
+ */
+public class FragLossCheck {
+    /** Give up on outcomes that never come after this much virtual time */
+    private static final long LIMIT = 100_000_000L;
+    /** A MAC address no station on the medium has */
+    private static final short NOBODY = 99;
+
+    public static void main(String[] args) throws InterruptedException {
+        Options opts = new Options(args, "stations", "messages", "payload", "loss", "log", "command");
+        int stations = opts.getInt("stations", 3);
+        int messages = opts.getInt("messages", 10);
+        int payload = Math.max(2 * Integer.BYTES, opts.getInt("payload", 5000));
+        double lossRate = opts.getDouble("loss", 0.0);
+
+        VirtualClock clock = new VirtualClock(42);
+        SimulatedMedium medium = new SimulatedMedium(clock, 1, lossRate, 42);
+        PrintWriter out = opts.output();
+        LinkLayer[] layers = new LinkLayer[stations];
+        for (int i = 0; i < stations; i++) {
+            layers[i] = new LinkLayer((short) (i + 1), out, medium.attach(), clock);
+            opts.apply(layers[i]);
+        }
+
+        // every thread runs on the virtual clock's one thread at a time
+        int[][] received = new int[stations][messages];
+        boolean[][] acknowledged = new boolean[stations][messages];
+        AtomicInteger arrivals = new AtomicInteger(), delivered = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger(), outcomes = new AtomicInteger();
+        for (int i = 0; i < stations; i++) {
+            LinkLayer ll = layers[i];
+            clock.start(() -> {
+                Transmission t = new Transmission((short) 0, (short) 0, null);
+                while (ll.recv(t) >= 0) {
+                    ByteBuffer buf = ByteBuffer.wrap(t.getBuf());
+                    received[buf.getInt(0)][buf.getInt(Integer.BYTES)]++;
+                    arrivals.incrementAndGet();
+                }
+            }, "Consumer " + ll.macAddr);
+
+            int from = i;
+            short dest = (short) ((i + 1) % stations + 1);
+            clock.start(() -> {
+                ByteBuffer buf = ByteBuffer.allocate(payload);
+                for (int m = 0; m < messages; m++) {
+                    buf.putInt(0, from).putInt(Integer.BYTES, m);
+                    int id = m;
+                    CompletableFuture<Delivery> sent;
+                    while ((sent = ll.sendAsync(dest, buf.array(), payload)).isCompletedExceptionally()) {
+                        try {
+                            ll.sleep(LinkLayer.BOUNDARY_SIZE);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    sent.thenAccept(delivery -> {
+                        if (delivery.isDelivered()) {
+                            acknowledged[from][id] = true;
+                            delivered.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                        outcomes.incrementAndGet();
+                    });
+                }
+            }, "Producer " + ll.macAddr);
+        }
+
+        while (outcomes.get() < stations * messages && clock.time() < LIMIT) {
+            clock.runUntil(clock.time() + 10_000);
+        }
+        // let late duplicates and deliveries settle
+        clock.runUntil(clock.time() + 100_000);
+
+        int lost = 0;
+        for (int i = 0; i < stations; i++) {
+            for (int m = 0; m < messages; m++) {
+                if (acknowledged[i][m] && received[i][m] == 0) {
+                    lost++;
+                }
+            }
+        }
+        System.out.printf("stations: %d, messages: %d x %d bytes, loss: %.2f%n", stations, messages, payload, lossRate);
+        System.out.printf("acknowledged but never received: %d%n", lost);
+        System.out.printf("acknowledged: %d, failed: %d, received: %d, in %.1f s%n",
+                delivered.get(), failed.get(), arrivals.get(), clock.time() / 1e3);
+        System.out.println("medium: " + medium);
+
+        long wasted = toNobody(opts, payload);
+        long allowed = 2 * (RF.dot11RetryLimit + 1);
+        System.out.printf("transmissions to fail a message to an absent station: %d (at most %d)%n", wasted, allowed);
+        System.exit(lost == 0 && wasted <= allowed ? 0 : 1);
+    }
+
+    /**
+     * Send one message to {@link #NOBODY} from a station with beacons off
+     *
+     * @return the transmissions on the medium until long after the message failed
+     */
+    private static long toNobody(Options opts, int payload) throws InterruptedException {
+        VirtualClock clock = new VirtualClock(42);
+        SimulatedMedium medium = new SimulatedMedium(clock, 1, 0.0, 42);
+        LinkLayer ll = new LinkLayer((short) 1, opts.output(), medium.attach(), clock);
+        opts.apply(ll);
+        ll.command(3, -1);
+        CompletableFuture<Delivery> sent = new CompletableFuture<>();
+        clock.start(() -> {
+            ll.sendAsync(NOBODY, new byte[payload], payload).whenComplete((delivery, e) -> sent.complete(delivery));
+        }, "Producer 1");
+        while (!sent.isDone() && clock.time() < LIMIT) {
+            clock.runUntil(clock.time() + 10_000);
+        }
+        // whatever was left of the message would have gone out by now
+        clock.runUntil(clock.time() + 100_000);
+        return medium.getTransmissions();
+    }
+}
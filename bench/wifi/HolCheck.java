@@ -0,0 +1,64 @@
+package wifi;
+
+import java.io.PrintWriter;
+
+/**
+ * Checks that a destination nobody answers does not hold up the others. One
+ * station alternates messages to a MAC address that is not on the medium
+ * with messages to a second station, on a {@link VirtualClock} with no
+ * loss. Every message to the second station should arrive, and the last
+ * well before the unanswered frames have used up their retries many times
+ * over: without head-of-line blocking, the run reports 20 arrivals, the
+ * last at about 31 s.
+ * <p>
+ * Usage: {@code HolCheck [messages=20] [log=] [command=cmd:val]...}
+ * where every {@code command} is passed to {@code LinkLayer.command()} on
+ * both stations and {@code log} sends their output to stdout.
+ */
+public class HolCheck {
+    /** A MAC address no station on the medium has */
+    private static final short NOBODY = 99;
+
+    public static void main(String[] args) throws InterruptedException {
+        Options opts = new Options(args, "messages", "log", "command");
+        int messages = opts.getInt("messages", 20);
+
+        VirtualClock clock = new VirtualClock(42);
+        SimulatedMedium medium = new SimulatedMedium(clock, 10, 0.0, 42);
+        PrintWriter out = opts.output();
+        LinkLayer sender = new LinkLayer((short) 1, out, medium.attach(), clock);
+        LinkLayer receiver = new LinkLayer((short) 2, out, medium.attach(), clock);
+        opts.apply(sender);
+        opts.apply(receiver);
+
+        int[] received = { 0 };
+        long[] last = { 0 };
+        clock.start(() -> {
+            Transmission t = new Transmission((short) 0, (short) 0, null);
+            while (receiver.recv(t) >= 0) {
+                received[0]++;
+                last[0] = clock.time();
+            }
+        }, "Consumer 2");
+        int count = messages;
+        clock.start(() -> {
+            byte[] data = new byte[20];
+            int sent = 0;
+            while (sent < count) {
+                sender.send(NOBODY, data, data.length);
+                if (sender.send((short) 2, data, data.length) > 0) {
+                    sent++;
+                }
+                try {
+                    sender.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "Producer 1");
+
+        clock.runUntil(10_000L * messages);
+        System.out.println("received: " + received[0] + "/" + messages + ", last at " + last[0] + " ms");
+        System.exit(0);
+    }
+}
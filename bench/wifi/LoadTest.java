@@ -0,0 +1,149 @@
+package wifi;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a number of {@link LinkLayer} stations on one {@link SimulatedMedium}
+ * and reports goodput and latency under contention. Station {@code i} sends
+ * its messages to station {@code i + 1}, so every station is both a sender
+ * and a receiver. With {@code clock=virtual} the whole scenario runs on a
+ * {@link VirtualClock}; reported times are then virtual. {@code clock=system}
+ * runs on a {@link TimerWheel} and reports its lateness, {@code clock=spin}
+ * on a {@link SystemClock} where every waiting thread spins for itself.
+ * Messages go out with {@code LinkLayer.sendAsync()}, whose outcomes give the
+ * access delays and retries reported. A consumer that takes {@code consume}
+ * ms over every message fills its receive queue, which shows what the
+ * receive overflow policy (command 14) costs.
+ * <p>
+ * Usage: {@code LoadTest [stations=10] [messages=10] [payload=100] [msPerByte=1]
+ * [loss=0.0] [consume=0] [clock=system|spin|virtual] [log=] [command=cmd:val]...}
+ * where every {@code command} is passed to {@code LinkLayer.command()} on each
+ * station and {@code log} sends the stations' output to stdout.
+ */
+public class LoadTest {
+    /** Give up on frames that never arrive after this much (virtual) time per message */
+    private static final long MS_PER_MESSAGE_LIMIT = 30_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        Options opts = new Options(args, "stations", "messages", "payload", "msPerByte", "loss", "consume", "clock",
+                "log", "command");
+        int stations = opts.getInt("stations", 10);
+        int messages = opts.getInt("messages", 10);
+        int payload = Math.max(Long.BYTES, opts.getInt("payload", 100));
+        int msPerByte = opts.getInt("msPerByte", 1);
+        double lossRate = opts.getDouble("loss", 0.0);
+        long consume = opts.getLong("consume", 0);
+        String clockName = opts.get("clock", "system");
+        boolean virtual = clockName.equals("virtual");
+
+        Clock clock = virtual ? new VirtualClock(42)
+                : clockName.equals("spin") ? new SystemClock() : new TimerWheel();
+        SimulatedMedium medium = new SimulatedMedium(clock, msPerByte, lossRate, 42);
+        PrintWriter out = opts.output();
+        LinkLayer[] layers = new LinkLayer[stations];
+        for (int i = 0; i < stations; i++) {
+            layers[i] = new LinkLayer((short) (i + 1), out, medium.attach(), clock);
+            opts.apply(layers[i]);
+        }
+
+        CountDownLatch done = new CountDownLatch(stations * messages);
+        AtomicLong bytes = new AtomicLong();
+        ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+        ConcurrentLinkedQueue<Delivery> deliveries = new ConcurrentLinkedQueue<>();
+        for (LinkLayer ll : layers) {
+            clock.start(() -> {
+                Transmission t = new Transmission((short) 0, (short) 0, null);
+                while (true) {
+                    int len = ll.recv(t);
+                    if (len >= Long.BYTES) {
+                        latencies.add(clock.time() - ByteBuffer.wrap(t.getBuf()).getLong());
+                        bytes.addAndGet(len);
+                        done.countDown();
+                    }
+                    if (consume > 0) {
+                        try {
+                            ll.sleep(consume);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "Consumer " + ll.macAddr);
+        }
+
+        long start = clock.time();
+        for (int i = 0; i < stations; i++) {
+            LinkLayer ll = layers[i];
+            short dest = (short) ((i + 1) % stations + 1);
+            int size = payload;
+            clock.start(() -> {
+                ByteBuffer buf = ByteBuffer.allocate(size);
+                for (int m = 0; m < messages; m++) {
+                    buf.putLong(0, clock.time());
+                    CompletableFuture<Delivery> sent;
+                    while ((sent = ll.sendAsync(dest, buf.array(), size)).isCompletedExceptionally()) {
+                        try {
+                            ll.sleep(LinkLayer.BOUNDARY_SIZE);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        buf.putLong(0, clock.time());
+                    }
+                    sent.thenAccept(deliveries::add);
+                }
+            }, "Producer " + ll.macAddr);
+        }
+
+        // frames lost after the retry limit never arrive, so give up eventually
+        long limit = start + stations * messages * MS_PER_MESSAGE_LIMIT;
+        long realStart = System.nanoTime();
+        if (virtual) {
+            VirtualClock vc = (VirtualClock) clock;
+            while (done.getCount() > 0 && vc.time() < limit) {
+                vc.runUntil(vc.time() + LinkLayer.BOUNDARY_SIZE);
+            }
+        } else {
+            done.await(limit - start, TimeUnit.MILLISECONDS);
+        }
+        double seconds = (clock.time() - start) / 1e3;
+        double realSeconds = (System.nanoTime() - realStart) / 1e9;
+
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        System.out.printf("stations: %d, messages: %d x %d bytes, %d ms/byte, loss: %.2f, %s clock%n",
+                stations, messages, payload, msPerByte, lossRate, clockName);
+        System.out.printf("delivered: %d/%d%s in %.1f s (%.2f s real)%n", sorted.length, stations * messages,
+                done.getCount() == 0 ? "" : " (timed out)", seconds, realSeconds);
+        System.out.printf("goodput: %.1f B/s%n", bytes.get() / seconds);
+        if (sorted.length > 0) {
+            System.out.printf("latency ms: mean %.1f, p50 %d, p99 %d, max %d%n",
+                    Arrays.stream(sorted).average().getAsDouble(),
+                    sorted[sorted.length / 2],
+                    sorted[(int) (sorted.length * 0.99)],
+                    sorted[sorted.length - 1]);
+        }
+        if (!deliveries.isEmpty()) {
+            long[] delays = deliveries.stream().mapToLong(Delivery::getAccessDelay).sorted().toArray();
+            System.out.printf("access delay ms: mean %.1f, p99 %d, max %d; retries: mean %.2f; failed: %d%n",
+                    Arrays.stream(delays).average().getAsDouble(),
+                    delays[(int) (delays.length * 0.99)],
+                    delays[delays.length - 1],
+                    deliveries.stream().mapToInt(Delivery::getRetries).average().getAsDouble(),
+                    deliveries.stream().filter(d -> !d.isDelivered()).count());
+        }
+        System.out.printf("receive queues: dropped %d, ACKs withheld %d%n",
+                Arrays.stream(layers).mapToLong(ll -> ll.receiver.dropped()).sum(),
+                Arrays.stream(layers).mapToLong(ll -> ll.receiver.withheld()).sum());
+        System.out.println("medium: " + medium);
+        if (clock instanceof TimerWheel) {
+            System.out.println("timers: " + clock);
+        }
+        System.exit(0);
+    }
+}
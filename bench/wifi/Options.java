@@ -0,0 +1,80 @@
+package wifi;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@code key=value} arguments of the tools in this directory. Every
+ * {@code command=cmd:val} is kept, in order, to be passed to
+ * {@code LinkLayer.command()} on each station by {@link #apply(LinkLayer)}.
+ * A key given without a value, such as {@code log}, is only present.
+ */
+final class Options {
+    private final Map<String, String> values = new HashMap<>();
+    private final List<int[]> commands = new ArrayList<>();
+
+    /**
+     * Parse the given arguments.
+     *
+     * @param args the tool's arguments
+     * @param keys the keys the tool accepts
+     * @throws IllegalArgumentException for any other key
+     */
+    Options(String[] args, String... keys) {
+        List<String> known = Arrays.asList(keys);
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            if (!known.contains(kv[0])) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            if (kv[0].equals("command")) {
+                String[] cmd = kv[1].split(":");
+                this.commands.add(new int[] { Integer.parseInt(cmd[0]), Integer.parseInt(cmd[1]) });
+            } else {
+                this.values.put(kv[0], kv.length > 1 ? kv[1] : "");
+            }
+        }
+    }
+
+    boolean has(String key) {
+        return this.values.containsKey(key);
+    }
+
+    String get(String key, String otherwise) {
+        return this.values.getOrDefault(key, otherwise);
+    }
+
+    int getInt(String key, int otherwise) {
+        return this.has(key) ? Integer.parseInt(this.values.get(key)) : otherwise;
+    }
+
+    long getLong(String key, long otherwise) {
+        return this.has(key) ? Long.parseLong(this.values.get(key)) : otherwise;
+    }
+
+    double getDouble(String key, double otherwise) {
+        return this.has(key) ? Double.parseDouble(this.values.get(key)) : otherwise;
+    }
+
+    /**
+     * Returns where the stations' output goes: stdout if {@code log} was
+     * given, else nowhere
+     */
+    PrintWriter output() {
+        return this.has("log") ? new PrintWriter(System.out, true) : new PrintWriter(OutputStream.nullOutputStream());
+    }
+
+    /**
+     * Pass every {@code command} to the given station
+     */
+    void apply(LinkLayer ll) {
+        for (int[] cmd : this.commands) {
+            ll.command(cmd[0], cmd[1]);
+        }
+    }
+}
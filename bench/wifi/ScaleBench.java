@@ -0,0 +1,123 @@
+package wifi;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reports what stations cost in memory and CPU time, so the cost of
+ * running stations on their own threads ({@link VirtualClock}) can be
+ * compared with running them all on one {@link EventLoop} as the number of
+ * stations grows. Station {@code i} sends its messages to station
+ * {@code i + 1}; producers and consumers are {@link Clock.Handler handlers}
+ * too, so both modes run exactly the same code.
+ * <p>
+ * Every run should get a JVM of its own, since threads and heap from an
+ * earlier run would be counted again:
+ * <pre>
+ * for n in 10 100 1000; do for m in threads loop; do
+ *     java -cp ... wifi.ScaleBench mode=$m stations=$n
+ * done; done
+ * </pre>
+ * Usage: {@code ScaleBench [mode=loop|threads] [stations=100] [messages=5]
+ * [payload=20] [msPerByte=1]}
+ */
+public class ScaleBench {
+    /** Give up on frames that never arrive after this much virtual time per message */
+    private static final long MS_PER_MESSAGE_LIMIT = 30_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        Options opts = new Options(args, "mode", "stations", "messages", "payload", "msPerByte");
+        String mode = opts.get("mode", "loop");
+        int stations = opts.getInt("stations", 100);
+        int messages = opts.getInt("messages", 5);
+        int payload = opts.getInt("payload", 20);
+        int msPerByte = opts.getInt("msPerByte", 1);
+        boolean loop = mode.equals("loop");
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        PrintWriter out = new PrintWriter(OutputStream.nullOutputStream());
+        long cpuBefore = os.getProcessCpuTime();
+
+        Clock clock = loop ? new EventLoop(42) : new VirtualClock(42);
+        SimulatedMedium medium = new SimulatedMedium(clock, msPerByte, 0.0, 42);
+        AtomicInteger delivered = new AtomicInteger();
+        for (int i = 0; i < stations; i++) {
+            LinkLayer ll = new LinkLayer((short) (i + 1), out, medium.attach(), clock);
+            short dest = (short) ((i + 1) % stations + 1);
+            byte[] data = new byte[payload];
+            int count = messages;
+            clock.start(new Clock.Handler() {
+                int sent;
+
+                @Override
+                public void step(Clock.Wait wait) {
+                    while (this.sent < count) {
+                        if (ll.send(dest, data, data.length) < 0) {
+                            wait.until(clock.time() + LinkLayer.BOUNDARY_SIZE);
+                            return;
+                        }
+                        this.sent++;
+                    }
+                    wait.until(Long.MAX_VALUE);
+                }
+            }, "Producer " + ll.macAddr);
+            Transmission t = new Transmission((short) 0, (short) 0, null);
+            clock.start(wait -> {
+                while (ll.recv(t, wait) >= 0) {
+                    delivered.incrementAndGet();
+                }
+            }, "Consumer " + ll.macAddr);
+        }
+
+        long total = (long) stations * messages;
+        long limit = messages * MS_PER_MESSAGE_LIMIT;
+        long realStart = System.nanoTime();
+        while (delivered.get() < total && clock.time() < limit) {
+            if (loop) {
+                ((EventLoop) clock).runUntil(clock.time() + 1000);
+            } else {
+                ((VirtualClock) clock).runUntil(clock.time() + 1000);
+            }
+        }
+        double realSeconds = (System.nanoTime() - realStart) / 1e9;
+        double cpuMs = (os.getProcessCpuTime() - cpuBefore) / 1e6;
+        double seconds = clock.time() / 1e3;
+        // the stations are still running, so all of their state is reachable
+        long heap = usedHeap();
+
+        System.out.printf("%-7s stations: %5d, threads: %5d, heap: %6.1f MB, rss: %6.1f MB, "
+                + "cpu/station: %6.3f ms per simulated s, delivered: %d/%d in %.1f s (%.2f s real)%n",
+                mode, stations, ManagementFactory.getThreadMXBean().getThreadCount(),
+                heap / 1024.0 / 1024.0, rss() / 1024.0, cpuMs / stations / seconds,
+                delivered.get(), total, seconds, realSeconds);
+        System.out.println("medium: " + medium);
+        System.exit(0);
+    }
+
+    /** Heap in use once garbage is collected */
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /** Resident set size of this process in KB, or 0 where /proc is not available */
+    private static long rss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (Exception e) {
+            // not on Linux
+        }
+        return 0;
+    }
+}
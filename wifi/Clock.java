@@ -0,0 +1,151 @@
+package wifi;
+
+import java.util.Random;
+
+/**
+ * Source of time for a {@link LinkLayer} and the only way its threads are
+ * allowed to wait. Routing every wait through a clock lets the wall clock
+ * ({@link TimerWheel}, or the self-spinning {@link SystemClock}) be replaced
+ * by a discrete-event one ({@link VirtualClock}) that skips straight to the
+ * next deadline, or by an {@link EventLoop} that runs every station's
+ * {@link Handler handlers} on a single thread.
+ */
+public interface Clock {
+    /**
+     * Returns the current time in milliseconds
+     */
+    long time();
+
+    /**
+     * Block until this clock reads at least the given time.
+     * 
+     * @param time deadline in this clock's milliseconds
+     * @throws InterruptedException
+     */
+    void sleepUntil(long time) throws InterruptedException;
+
+    /**
+     * Create a {@link Signal} whose waits are scheduled by this clock.
+     */
+    Signal newSignal();
+
+    /**
+     * Start a thread that runs the given task under this clock.
+     * 
+     * @param task the task to run
+     * @param name the thread's name
+     * @return the started thread
+     */
+    Thread start(Runnable task, String name);
+
+    /**
+     * Start running a {@link Handler} under this clock. The default gives it
+     * a thread that calls {@link Handler#step(Wait)} and then blocks for
+     * whatever the step asked to wait for, until interrupted.
+     * 
+     * @param handler the handler to run
+     * @param name    the thread's name
+     * @return the started thread, or null if the clock runs handlers without
+     *         threads of their own
+     */
+    default Thread start(Handler handler, String name) {
+        return this.start(() -> {
+            Wait wait = new Wait();
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    wait.until(Long.MIN_VALUE);
+                    handler.step(wait);
+                    if (wait.signal != null) {
+                        wait.signal.await(wait.time);
+                    } else {
+                        this.sleepUntil(wait.time);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stop running the handler
+            }
+        }, name);
+    }
+
+    /**
+     * Create a source of randomness for a station. Clocks that promise
+     * reproducible runs return a generator seeded from the given salt.
+     * 
+     * @param salt a value identifying the station, such as its MAC address
+     */
+    default Random newRandom(long salt) {
+        return new Random();
+    }
+
+    /**
+     * A state machine that never blocks on its clock, so that it can either
+     * have a thread of its own or share an {@link EventLoop} with many others.
+     */
+    interface Handler {
+        /**
+         * Do whatever can be done now, then set {@code wait} to what has to
+         * happen before the next step. Leaving it untouched asks for the next
+         * step straight away.
+         */
+        void step(Wait wait);
+    }
+
+    /**
+     * What a {@link Handler} waits for between steps: a signal, a time on the
+     * clock, or whichever of the two comes first.
+     */
+    final class Wait {
+        Signal signal;
+        long time;
+
+        /**
+         * Wait until the given time on the clock
+         */
+        public void until(long time) {
+            this.signal = null;
+            this.time = time;
+        }
+
+        /**
+         * Wait until the signal is raised or the deadline passes
+         * 
+         * @param signal   the signal, or null to only wait for the deadline
+         * @param deadline time on the clock, or {@code Long.MAX_VALUE} to wait
+         *                 for the signal alone
+         */
+        public void on(Signal signal, long deadline) {
+            this.signal = signal;
+            this.time = deadline;
+        }
+
+        /**
+         * Wake by the given time at the latest, whatever is already waited for
+         */
+        public void by(long deadline) {
+            this.time = Math.min(this.time, deadline);
+        }
+    }
+
+    /**
+     * A wake-up flag that one thread can wait on and others can raise. A
+     * {@link #signal()} with nobody waiting is remembered, so the next
+     * {@link #await(long)} returns immediately. Waiters should re-check
+     * whatever condition they are waiting for after every return.
+     */
+    interface Signal {
+        /**
+         * Block until this signal is raised or the deadline passes.
+         * 
+         * @param deadline time on the owning clock, or {@code Long.MAX_VALUE}
+         *                 to wait indefinitely
+         * @return true if signaled, false if the deadline passed
+         * @throws InterruptedException
+         */
+        boolean await(long deadline) throws InterruptedException;
+
+        /**
+         * Wake every thread waiting on this signal
+         */
+        void signal();
+    }
+}
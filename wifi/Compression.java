@@ -0,0 +1,88 @@
+package wifi;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate with a preset dictionary, used to shrink DATA payloads before
+ * they go on the air. The dictionary primes the compressor with text that is
+ * common in short messages, which is what makes a few dozen bytes worth
+ * compressing at all. Both ends must use the same dictionary.
+ */
+public final class Compression {
+    /** Text that short payloads are likely to share; later entries compress best */
+    private static final byte[] DICTIONARY = (
+            "error warning info debug true false null undefined http://https://www..com.org/index.html "
+            + "GET POST OK Content-Type: application/json text/plain; charset=utf-8 "
+            + "{\"id\":\"name\":\"type\":\"value\":\"time\":\"status\":\"message\":\"data\":[{\"},\"}]} "
+            + "that with have this will your from they know want been good much some time very when come "
+            + "here just like long make many more only over such take than them well were what "
+            + "hello thanks please message received sending the of and to in is for it on you are ")
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(
+            () -> new Deflater(Deflater.BEST_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private Compression() {
+    }
+
+    /**
+     * Compress the first {@code len} bytes of {@code data}
+     *
+     * @return the compressed bytes, or null if they are not smaller
+     */
+    public static byte[] compress(byte[] data, int len) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(data, 0, len);
+        deflater.finish();
+        // anything that would not come out smaller is useless anyway
+        byte[] out = new byte[len];
+        int size = 0;
+        while (!deflater.finished() && size < out.length) {
+            size += deflater.deflate(out, size, out.length - size);
+        }
+        if (!deflater.finished() || size >= len) {
+            return null;
+        }
+        return Arrays.copyOf(out, size);
+    }
+
+    /**
+     * Restore data produced by {@link #compress(byte[], int)}
+     *
+     * @param maxLen the largest result to accept
+     * @return the original bytes, or null if the input is corrupt or too large
+     */
+    public static byte[] decompress(byte[] data, int maxLen) {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(data);
+        byte[] out = new byte[Math.min(maxLen, Math.max(64, 4 * data.length))];
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                if (size == out.length) {
+                    if (out.length == maxLen) {
+                        return null;
+                    }
+                    out = Arrays.copyOf(out, (int) Math.min(maxLen, 2L * out.length));
+                }
+                int n = inflater.inflate(out, size, out.length - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return null; // truncated
+                }
+                size += n;
+            }
+        } catch (DataFormatException e) {
+            return null;
+        }
+        return Arrays.copyOf(out, size);
+    }
+}
@@ -0,0 +1,48 @@
+package wifi;
+
+/**
+ * The outcome of a message sent with
+ * {@link LinkLayer#sendAsync(short, byte[], int, int)}: whether it was
+ * acknowledged, how often its packets were resent, and its access delay, the
+ * time from reaching the head of its queue until the last of its packets was
+ * acknowledged or given up on. Broadcasts are never acknowledged, so they
+ * count as delivered once on the air.
+ */
+public class Delivery {
+    private final boolean delivered;
+    private final int retries;
+    private final long accessDelay;
+
+    public Delivery(boolean delivered, int retries, long accessDelay) {
+        this.delivered = delivered;
+        this.retries = retries;
+        this.accessDelay = accessDelay;
+    }
+
+    /**
+     * Returns true if every packet of the message was acknowledged
+     */
+    public boolean isDelivered() {
+        return this.delivered;
+    }
+
+    /**
+     * Returns the number of resends, summed over the message's packets
+     */
+    public int getRetries() {
+        return this.retries;
+    }
+
+    /**
+     * Returns the access delay in ms of the {@link LinkLayer}'s clock
+     */
+    public long getAccessDelay() {
+        return this.accessDelay;
+    }
+
+    @Override
+    public String toString() {
+        return (this.delivered ? "delivered" : "failed") + " after " + this.retries + " retries, access delay "
+                + this.accessDelay + " ms";
+    }
+}
@@ -0,0 +1,184 @@
+package wifi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * A discrete-event {@link Clock} that runs {@link Clock.Handler handlers}
+ * without giving them threads. Every step of every handler, and every event
+ * of a {@link SimulatedMedium} built on the loop, runs on the thread calling
+ * {@link #runUntil(long)}, in time order and, at equal times, in the order it
+ * was scheduled. That makes runs as reproducible as on a {@link VirtualClock}
+ * while a station costs no more than its objects, so hundreds of stations fit
+ * in one JVM.
+ * <p>
+ * Nothing run by the loop may block: {@link #sleepUntil(long)},
+ * {@link Clock.Signal#await(long)} and starting a plain {@code Runnable}
+ * throw an {@code IllegalStateException}. Between calls to {@code runUntil()}
+ * the calling thread may set up or inspect the simulation (e.g. call
+ * {@code LinkLayer.send()}); the loop is not safe for use by more than one
+ * thread.
+ */
+public class EventLoop implements Clock {
+    private final long seed;
+    /** Pending events, earliest first */
+    private final PriorityQueue<Event> events;
+    private long now;
+    private long sequence;
+
+    /**
+     * Create an event loop starting at time 0.
+     *
+     * @param seed seed from which every station's randomness is derived
+     */
+    public EventLoop(long seed) {
+        this.seed = seed;
+        this.events = new PriorityQueue<>((a, b) -> a.time != b.time
+                ? Long.compare(a.time, b.time)
+                : Long.compare(a.sequence, b.sequence));
+    }
+
+    @Override
+    public long time() {
+        return this.now;
+    }
+
+    /**
+     * Run every event up to the given time, then leave the clock there.
+     *
+     * @param time time to stop at
+     */
+    public void runUntil(long time) {
+        Event next;
+        while ((next = this.events.peek()) != null && next.time <= time) {
+            this.events.poll();
+            this.now = Math.max(this.now, next.time);
+            next.action.run();
+        }
+        this.now = Math.max(this.now, time);
+    }
+
+    /**
+     * Run the given action at the given time, or as soon as possible if that
+     * has passed.
+     */
+    public void schedule(long time, Runnable action) {
+        this.events.add(new Event(Math.max(time, this.now), this.sequence++, action));
+    }
+
+    /**
+     * Returns the number of events waiting to run
+     */
+    public int pending() {
+        return this.events.size();
+    }
+
+    @Override
+    public void sleepUntil(long time) {
+        throw new IllegalStateException("Nothing run by an event loop may block");
+    }
+
+    @Override
+    public Signal newSignal() {
+        return new LoopSignal();
+    }
+
+    @Override
+    public Thread start(Runnable task, String name) {
+        throw new IllegalStateException("An event loop only runs handlers, not " + name);
+    }
+
+    @Override
+    public Thread start(Handler handler, String name) {
+        Task task = new Task(handler);
+        this.schedule(this.now, task::run);
+        return null;
+    }
+
+    @Override
+    public Random newRandom(long salt) {
+        return new Random(this.seed * 31 + salt);
+    }
+
+    private static class Event {
+        final long time, sequence;
+        final Runnable action;
+
+        Event(long time, long sequence, Runnable action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.action = action;
+        }
+    }
+
+    /**
+     * A handler and what it is waiting for
+     */
+    private class Task {
+        final Handler handler;
+        final Wait wait = new Wait();
+        /** Counts steps, so a wake-up meant for an earlier wait is ignored */
+        long generation;
+
+        Task(Handler handler) {
+            this.handler = handler;
+        }
+
+        void run() {
+            this.generation++;
+            this.wait.until(Long.MIN_VALUE);
+            this.handler.step(this.wait);
+
+            LoopSignal signal = (LoopSignal) this.wait.signal;
+            if (signal != null && signal.permit) {
+                signal.permit = false;
+                this.wake(this.generation, EventLoop.this.now);
+                return;
+            }
+            if (signal != null) {
+                signal.waiters.add(this);
+            }
+            if (this.wait.time != Long.MAX_VALUE) {
+                this.wake(this.generation, this.wait.time);
+            }
+        }
+
+        void wake(long generation, long time) {
+            EventLoop.this.schedule(time, () -> {
+                if (this.generation == generation) {
+                    if (this.wait.signal != null) {
+                        ((LoopSignal) this.wait.signal).waiters.remove(this);
+                    }
+                    this.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * A {@link Clock.Signal} that wakes the handlers waiting on it
+     */
+    private class LoopSignal implements Signal {
+        final List<Task> waiters = new ArrayList<>(1);
+        boolean permit;
+
+        @Override
+        public boolean await(long deadline) {
+            throw new IllegalStateException("Nothing run by an event loop may block");
+        }
+
+        @Override
+        public void signal() {
+            if (this.waiters.isEmpty()) {
+                this.permit = true;
+                return;
+            }
+            for (Task task : this.waiters) {
+                task.wake(task.generation, EventLoop.this.now);
+            }
+            this.waiters.clear();
+        }
+    }
+}
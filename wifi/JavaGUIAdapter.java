@@ -16,10 +16,16 @@ import java.io.PrintWriter;
 
 public class JavaGUIAdapter implements GUIClientInterface 
 {
-	private static Dot11Interface theDot11Layer;
+	private static LinkLayer theDot11Layer;
 	private static CircularByteBuffer cbb;
 	private static BufferedReader reader;
 
+	/** Most messages taken from the 802.11~ layer per recvBatch() call */
+	private static final int BATCH_SIZE = 16;
+	/** Messages received but not yet handed to the GUI: batch[next] up to batch[received] */
+	private static final Packet[] batch = new Packet[BATCH_SIZE];
+	private static int received, next;
+
 	/**
 	 * An array of addresses to use for the "send" buttons in the GUI.
 	 * @return An array of MAC addresses assigned to buttons by the GUI.
@@ -39,11 +45,19 @@ public class JavaGUIAdapter implements GUIClientInterface
 	 * @return Returns 0 on success, -1 if an error occurs.
 	 */
 	public int initializeLinkLayer(short MACaddr) {
+		return this.initializeLinkLayer(MACaddr, null);
+	}
+
+	/**
+	 * Same as above, on the given medium instead of the RF layer (if not null).
+	 */
+	int initializeLinkLayer(short MACaddr, Medium medium) {
 
 		try {
 			cbb = new CircularByteBuffer(CircularByteBuffer.INFINITE_SIZE);
 			reader = new BufferedReader(new InputStreamReader(cbb.getInputStream()));
-			theDot11Layer = new LinkLayer(MACaddr, new PrintWriter(cbb.getOutputStream(), true));
+			PrintWriter out = new PrintWriter(cbb.getOutputStream(), true);
+			theDot11Layer = medium == null ? new LinkLayer(MACaddr, out) : new LinkLayer(MACaddr, out, medium);
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			return -1;
@@ -52,30 +66,35 @@ public class JavaGUIAdapter implements GUIClientInterface
 	}
 
 	/**
-	 * This method calls the 802.11~ layer's recv() method, which should block until
-	 * data arrives.  It then builds an array of bytes consisting of the the sender's
-	 * MAC address followed by the data from the recv() call.  (This may seem odd, but
-	 * the approach is easy to support on both the C++ and Java side.)
+	 * This method calls the 802.11~ layer's recvBatch() method, which should block until
+	 * data arrives, and hands out what it received one message per call.  It then builds
+	 * an array of bytes consisting of the the sender's MAC address followed by the data
+	 * of the message.  (This may seem odd, but the approach is easy to support on both
+	 * the C++ and Java side.)
 	 * @return An array of bytes containing MAC addresses and data
 	 */
 	public byte[] watchForIncomingData() {
-		// Create a Transmission object, and pass it to the recv() call
-		byte[] buf = new byte[2048];
-		Transmission t = new Transmission((short)0, (short)0, buf);
-		int result = theDot11Layer.recv(t); 
-
-		// See if there was any data in the transmission
-		int dataLen = 0;
-		if (result > 0) {
-			dataLen = result;
+		// only the GUI's watcher thread calls this
+		if (next == received) {
+			next = 0;
+			received = theDot11Layer.recvBatch(batch, Long.MAX_VALUE);
+		}
+		// an interrupted wait yields an empty message, as recv() did
+		Packet pkt = null;
+		if (next < received) {
+			pkt = batch[next];
+			batch[next++] = null;
 		}
+		short source = pkt == null ? 0 : pkt.getSource();
 
-		// Build a byte array, fill it with the source address and data,
-		// and return the whole shebang.
-		byte[] data = new byte[dataLen + 2]; 
-		data[0] = (byte) ((t.getSourceAddr() >>> 8) & 0xFF);
-		data[1] = (byte) (t.getSourceAddr() & 0xFF);
-		System.arraycopy(t.getBuf(), 0, data, 2, dataLen);
+		// Build a byte array, fill it with the source address and data
+		// straight from the received frame, and return the whole shebang.
+		byte[] data = new byte[(pkt == null ? 0 : pkt.dataSize()) + 2];
+		data[0] = (byte) ((source >>> 8) & 0xFF);
+		data[1] = (byte) (source & 0xFF);
+		if (pkt != null) {
+			pkt.copyData(data, 2);
+		}
 		return data;
 	}
 
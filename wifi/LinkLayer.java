@@ -1,6 +1,12 @@
 package wifi;
 
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
 import rf.RF;
 
 /**
@@ -21,6 +27,13 @@ public class LinkLayer implements Dot11Interface {
 	 */
 	public static final int ACK_TIMEOUT = 2000, BEACON_DELIVERY_TIME = 2330, BEACON_UNPACK_TIME = 1;
 
+	/**
+	 * Floor of the ACK timeout. The timeout is estimated from the round trips
+	 * measured to each destination, starting from and never exceeding
+	 * {@link #ACK_TIMEOUT}.
+	 */
+	public static final int MIN_ACK_TIMEOUT = 200;
+
 	/** Status code for the {@link Dot11Interface}. */
 	public static final int SUCCESS = 1,
 			UNSPECIFIED_ERROR = 2,
@@ -33,16 +46,39 @@ public class LinkLayer implements Dot11Interface {
 			ILLEGAL_ARGUMENT = 9,
 			INSUFFICIENT_BUFFER_SPACE = 10;
 
+	/**
+	 * Priority levels for {@link #send(short, byte[], int, int)}, lowest first.
+	 * Each has its own queues, inter-frame space and contention window.
+	 */
+	public static final int PRIORITY_BULK = 0, PRIORITY_NORMAL = 1, PRIORITY_CONTROL = 2;
+
+	/**
+	 * What the receiver does with data once the layer above has no room for
+	 * it: drop it, drop the oldest data waiting to make room, or leave it
+	 * unacknowledged so that the sender tries again later.
+	 */
+	public static final int OVERFLOW_DROP_NEWEST = 0, OVERFLOW_DROP_OLDEST = 1, OVERFLOW_WITHHOLD_ACK = 2;
+
 	/** timing is aligned by boundaries of this size. */
 	public static final int BOUNDARY_SIZE = 50;
 
+	/** Longest gap between a frame and a reply sent one SIFS after it, which waits for a boundary */
+	public static final int REPLY_GAP = RF.aSIFSTime + BOUNDARY_SIZE;
+
 	// Final fields
-	public final RF rf;
+	public final Medium rf;
+	public final Clock clock;
+	public final Random random;
 	public final short macAddr;
 	public final Sender sender;
 	public final Receiver receiver;
+	public final Responder responder;
 
 	private final PrintWriter out;
+	/** Raised when carrier sense may have changed, null if the medium has to be polled */
+	private final Clock.Signal channelChanged;
+	/** Clock time until which an overheard RTS or CTS has reserved the channel (the NAV) */
+	private volatile long navUntil;
 
 	// Instance variables
 	private int debugLevel;
@@ -51,6 +87,27 @@ public class LinkLayer implements Dot11Interface {
 	public volatile int clock_offset = 10;
 	public volatile long beaconFrequency = 12_000;
 	public volatile boolean randomWait = true;
+	public volatile int arqWindow = 1;
+	public volatile boolean blockAck;
+	public volatile boolean aggregate;
+	/** Destinations whose data is compressed before sending */
+	public final Set<Short> compressTo = ConcurrentHashMap.newKeySet();
+	/** Messages that may wait to be sent to each destination */
+	public volatile int queueDepth = Sender.BUFFER_CAPACITY;
+	/** Bytes of packets that may wait to be sent across all destinations */
+	public volatile int queueBudget = Sender.QUEUE_BUDGET;
+	/** Messages that may wait to be taken by {@link #recv(Transmission)} */
+	public volatile int recvDepth = Receiver.BUFFER_CAPACITY;
+	/** Data bytes of messages that may wait to be taken */
+	public volatile int recvBudget = Receiver.BUFFER_BUDGET;
+	/**
+	 * One of the {@code OVERFLOW_} policies, for data arriving once the receive
+	 * queue is full. When withholding ACKs, frames held back for reordering may
+	 * take the queue past its depth and budget once they are released.
+	 */
+	public volatile int recvOverflow = OVERFLOW_DROP_NEWEST;
+	/** Frames with more data bytes than this reserve the channel with RTS/CTS first, -1 for none */
+	public volatile int rtsThreshold = -1;
 	public volatile int status = 0;
 	public volatile boolean timing;
 
@@ -63,26 +120,66 @@ public class LinkLayer implements Dot11Interface {
 	 * @param output Output stream associated with GUI
 	 */
 	public LinkLayer(short ourMAC, PrintWriter output) {
+		this(ourMAC, output, new RFMedium());
+	}
+
+	/**
+	 * Constructor takes a MAC address, the PrintWriter to which our output will
+	 * be written, and the medium to transmit on.
+	 * 
+	 * @param ourMAC MAC address
+	 * @param output Output stream associated with GUI
+	 * @param medium The channel beneath this layer (see {@link SimulatedMedium})
+	 */
+	public LinkLayer(short ourMAC, PrintWriter output, Medium medium) {
+		this(ourMAC, output, medium, TimerWheel.shared());
+	}
+
+	/**
+	 * Constructor takes a MAC address, the PrintWriter to which our output will
+	 * be written, the medium to transmit on and the clock that schedules all of
+	 * our waiting.
+	 * 
+	 * @param ourMAC MAC address
+	 * @param output Output stream associated with GUI
+	 * @param medium The channel beneath this layer (see {@link SimulatedMedium})
+	 * @param clock  Source of time for waits (see {@link VirtualClock})
+	 */
+	public LinkLayer(short ourMAC, PrintWriter output, Medium medium, Clock clock) {
 		this.macAddr = ourMAC;
 		this.out = output;
 		this.debugLevel = ERROR;
 
-		this.rf = new RF(null, null);
+		this.rf = medium;
+		this.clock = clock;
+		this.random = clock.newRandom(ourMAC);
+		Clock.Signal changed = clock.newSignal();
+		this.channelChanged = medium.onChange(changed::signal) ? changed : null;
 		this.sender = new Sender(this);
+		this.responder = new Responder(this);
 		this.receiver = new Receiver(this);
 
-		new Thread(this.sender).start();
-		new Thread(this.receiver).start();
+		clock.start(this.sender, "Sender " + ourMAC);
+		clock.start(this.responder, "Responder " + ourMAC);
+		clock.start(this.receiver, "Receiver " + ourMAC);
 
 		this.status = SUCCESS;
 	}
 
+	/**
+	 * Returns true if messages of the given kind are being logged, so callers
+	 * on hot paths can skip building them
+	 */
+	public boolean logs(int mask) {
+		return (this.debugLevel & mask) != 0;
+	}
+
 	/**
 	 * Print a message if the current log mode and the given
 	 * mask have any common bit set.
 	 */
 	public void log(String msg, int mask) {
-		if ((this.debugLevel & mask) != 0) {
+		if (this.logs(mask)) {
 			this.out.println(this.time() + ": " + msg);
 		}
 	}
@@ -93,26 +190,135 @@ public class LinkLayer implements Dot11Interface {
 	 */
 	@Override
 	public int send(short dest, byte[] data, int len) {
+		return this.send(dest, data, len, PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Send at the given priority. Higher priorities wait a shorter inter-frame
+	 * space and back off from a narrower contention window, so they get onto
+	 * the air ahead of queued lower priority data.
+	 * 
+	 * @param priority one of {@link #PRIORITY_BULK}, {@link #PRIORITY_NORMAL}
+	 *                 or {@link #PRIORITY_CONTROL}
+	 */
+	public int send(short dest, byte[] data, int len, int priority) {
+		return this.send(dest, data, len, priority, null);
+	}
+
+	/**
+	 * Send at normal priority, waiting for room in the queue for as long as
+	 * it takes
+	 * 
+	 * @see #send(short, byte[], int, int, long)
+	 */
+	public int sendBlocking(short dest, byte[] data, int len) throws InterruptedException {
+		return this.send(dest, data, len, PRIORITY_NORMAL, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Send at the given priority, waiting up to {@code timeout} ms for room
+	 * in the queue rather than failing as soon as it is full. A timeout of 0
+	 * fails at once like {@link #send(short, byte[], int, int)}, and
+	 * {@code Long.MAX_VALUE} waits for as long as it takes. The wait is on
+	 * this layer's clock, so handlers run on an {@link EventLoop} may only
+	 * use a timeout of 0.
+	 * 
+	 * @throws InterruptedException if interrupted while waiting; nothing is
+	 *                              sent
+	 */
+	public int send(short dest, byte[] data, int len, int priority, long timeout) throws InterruptedException {
+		int bytesToSend = this.checkSend(dest, data, len, priority, null);
+		if (bytesToSend < 0) {
+			return -1;
+		}
+		long now = this.clock.time();
+		long deadline = timeout >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + Math.max(0, timeout);
+		return this.queued(this.sender.enqueue(dest, data, bytesToSend, priority, null, deadline), dest,
+				bytesToSend, null);
+	}
+
+	/**
+	 * Send at normal priority without waiting to learn the outcome
+	 * 
+	 * @see #sendAsync(short, byte[], int, int)
+	 */
+	public CompletableFuture<Delivery> sendAsync(short dest, byte[] data, int len) {
+		return this.sendAsync(dest, data, len, PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Send at the given priority and return a future for the outcome, so
+	 * callers can keep the queue full instead of polling {@link #status()}.
+	 * The future completes with a {@link Delivery} once the message is
+	 * acknowledged or given up on, on the thread that found out; stages that
+	 * block should be attached with the {@code *Async} methods. If the message
+	 * cannot be queued the future has already failed, with an
+	 * {@link IllegalArgumentException} or, when the queue is full, an
+	 * {@link IllegalStateException}.
+	 */
+	public CompletableFuture<Delivery> sendAsync(short dest, byte[] data, int len, int priority) {
+		CompletableFuture<Delivery> future = new CompletableFuture<>();
+		this.send(dest, data, len, priority, future);
+		return future;
+	}
+
+	private int send(short dest, byte[] data, int len, int priority, CompletableFuture<Delivery> future) {
+		int bytesToSend = this.checkSend(dest, data, len, priority, future);
+		if (bytesToSend < 0) {
+			return -1;
+		}
+		return this.queued(this.sender.enqueue(dest, data, bytesToSend, priority, future), dest, bytesToSend,
+				future);
+	}
+
+	/**
+	 * Check the arguments of a send
+	 * 
+	 * @return the number of bytes to send, or -1 if it cannot be sent
+	 */
+	private int checkSend(short dest, byte[] data, int len, int priority, CompletableFuture<Delivery> future) {
+		if (priority < PRIORITY_BULK || priority > PRIORITY_CONTROL) {
+			this.status = ILLEGAL_ARGUMENT;
+			return reject(future, new IllegalArgumentException("Unknown priority: " + priority));
+		}
 		// cannot send data under these conditions
 		if (len < 0 || data == null || dest == this.macAddr) {
-			return -1;
+			return reject(future, new IllegalArgumentException("Cannot send " + len + " bytes to MAC " + dest));
 		}
 
-		// limit size of the packet's data portion
-		int bytesToSend = Math.min(Math.min(data.length, len), Packet.MAX_DATA_SIZE);
+		// limit size of the message; anything over one packet is fragmented
+		int bytesToSend = Math.min(Math.min(data.length, len), Packet.MAX_MESSAGE_SIZE);
 		if (bytesToSend != len) {
 			this.log("Cannot send all " + len + " bytes of data. Sending first " + bytesToSend + " bytes.", ERROR);
 		}
+		return bytesToSend;
+	}
 
-		boolean success = this.sender.enqueue(dest, data, bytesToSend);
-
+	/**
+	 * Set the status for a message the sender accepted or rejected
+	 * 
+	 * @return the number of bytes queued, or -1
+	 */
+	private int queued(boolean success, short dest, int bytesToSend, CompletableFuture<Delivery> future) {
 		if (success) {
 			this.status = SUCCESS;
 			return bytesToSend;
 		} else {
 			this.status = INSUFFICIENT_BUFFER_SPACE;
-			return -1;
+			return reject(future, new IllegalStateException("Transmit queue to MAC " + dest + " is full"));
+		}
+	}
+
+	/**
+	 * Fail the future of a message that was not queued, if there is one
+	 * 
+	 * @return -1
+	 */
+	private static int reject(CompletableFuture<Delivery> future, Exception cause) {
+		if (future != null) {
+			future.completeExceptionally(cause);
 		}
+		return -1;
 	}
 
 	/**
@@ -128,13 +334,176 @@ public class LinkLayer implements Dot11Interface {
 			this.status = UNSPECIFIED_ERROR;
 			return 0;
 		} else {
-			byte[] data = pkt.extractData();
-			t.setBuf(data);
-			t.setDestAddr(pkt.getDest());
-			t.setSourceAddr(pkt.getSource());
+			return this.fill(t, pkt);
+		}
+	}
+
+	/**
+	 * Recv for callers run by an {@link EventLoop}, which may not block.
+	 * Returns -1 if no data has arrived, in which case {@code wait} is set to
+	 * wake the caller when it may have.
+	 */
+	public int recv(Transmission t, Clock.Wait wait) {
+		Packet pkt = this.receiver.poll(wait);
+		if (pkt == null) {
+			return -1;
+		}
+		return this.fill(t, pkt);
+	}
+
+	/**
+	 * Block until data arrives, then fill the given transmissions with
+	 * everything that has arrived, one message each, up to the length of the
+	 * array. Draining a burst in one call saves a wake-up per message.
+	 * 
+	 * @param batch transmissions to fill; they may be reused from call to call
+	 * @return the number filled, from the start of {@code batch}
+	 */
+	public int recvBatch(Transmission[] batch) {
+		return this.recvBatch(batch, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Receive as {@link #recvBatch(Transmission[])} does, waiting up to
+	 * {@code timeout} ms of this layer's clock for the first message. A timeout
+	 * of 0 only takes what has already arrived.
+	 * 
+	 * @return the number filled, 0 if nothing arrived in time
+	 */
+	public int recvBatch(Transmission[] batch, long timeout) {
+		Packet pkt = batch.length == 0 ? null : this.waitForPacket(timeout);
+		int count = 0;
+		while (pkt != null) {
+			this.fill(batch[count++], pkt);
+			pkt = count < batch.length ? this.receiver.poll() : null;
+		}
+		return count;
+	}
+
+	/**
+	 * Receive batches as packets, for callers in this package that copy the
+	 * data out themselves
+	 * 
+	 * @see #recvBatch(Transmission[], long)
+	 */
+	int recvBatch(Packet[] batch, long timeout) {
+		Packet pkt = batch.length == 0 ? null : this.waitForPacket(timeout);
+		int count = 0;
+		while (pkt != null) {
+			batch[count++] = pkt;
+			pkt = count < batch.length ? this.receiver.poll() : null;
+		}
+		return count;
+	}
+
+	/**
+	 * Recv batches for callers run by an {@link EventLoop}, which may not
+	 * block. Returns 0 if no data has arrived, in which case {@code wait} is
+	 * set to wake the caller when it may have.
+	 * 
+	 * @see #recvBatch(Transmission[])
+	 */
+	public int recvBatch(Transmission[] batch, Clock.Wait wait) {
+		Packet pkt = batch.length == 0 ? null : this.receiver.poll(wait);
+		int count = 0;
+		while (pkt != null) {
+			this.fill(batch[count++], pkt);
+			pkt = count < batch.length ? this.receiver.poll() : null;
+		}
+		return count;
+	}
+
+	/**
+	 * Receive as {@link #recv(Transmission)} does, but copy the data into the
+	 * buffer the transmission already holds instead of handing it a new one,
+	 * so a buffer can be reused from call to call. A message longer than the
+	 * buffer is truncated, the rest of it is lost and {@link #status()}
+	 * reports {@code BAD_BUF_SIZE}.
+	 * 
+	 * @return the number of bytes written to the buffer, or -1 if the
+	 *         transmission has no buffer
+	 */
+	public int recvInto(Transmission t) {
+		byte[] buf = t.getBuf();
+		if (buf == null) {
+			this.status = BAD_BUF_SIZE;
+			return -1;
+		}
+		Packet pkt = this.waitForPacket(Long.MAX_VALUE);
+		if (pkt == null) {
+			return 0;
+		}
+		this.address(t, pkt);
+		return this.copied(pkt.copyData(buf, 0), pkt);
+	}
+
+	/**
+	 * Receive as {@link #recvInto(Transmission)} does, writing the data into
+	 * {@code dst} from its position on instead and advancing the position past
+	 * it. Only the addresses are written into {@code t}.
+	 * 
+	 * @return the number of bytes written to {@code dst}
+	 */
+	public int recvInto(Transmission t, ByteBuffer dst) {
+		Packet pkt = this.waitForPacket(Long.MAX_VALUE);
+		if (pkt == null) {
+			return 0;
+		}
+		this.address(t, pkt);
+		return this.copied(pkt.copyData(dst), pkt);
+	}
+
+	/**
+	 * Wait up to {@code timeout} ms of this layer's clock for the next packet
+	 * 
+	 * @return the packet, or null if none arrived in time or the wait was
+	 *         interrupted
+	 */
+	private Packet waitForPacket(long timeout) {
+		long now = this.clock.time();
+		long deadline = timeout >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + Math.max(0, timeout);
+		try {
+			this.status = SUCCESS;
+			return this.receiver.nextPacket(deadline);
+		} catch (InterruptedException e) {
+			this.log("Interrupted while blocking for incoming data.", ERROR);
+			this.status = UNSPECIFIED_ERROR;
+			return null;
+		}
+	}
+
+	private void address(Transmission t, Packet pkt) {
+		t.setDestAddr(pkt.getDest());
+		t.setSourceAddr(pkt.getSource());
+	}
+
+	/**
+	 * Set the status after copying {@code len} bytes of a packet's data
+	 * 
+	 * @return {@code len}
+	 */
+	private int copied(int len, Packet pkt) {
+		if (len < pkt.dataSize()) {
+			this.log("Truncated a " + pkt.dataSize() + " byte message from MAC " + pkt.getSource() + " to " + len
+					+ " bytes", DEBUG);
+			this.status = BAD_BUF_SIZE;
+		} else {
 			this.status = SUCCESS;
-			return data.length;
 		}
+		return len;
+	}
+
+	/**
+	 * Write a received packet's data and addresses into a transmission
+	 * 
+	 * @return the number of data bytes
+	 */
+	private int fill(Transmission t, Packet pkt) {
+		byte[] data = pkt.extractData();
+		t.setBuf(data);
+		this.address(t, pkt);
+		this.status = SUCCESS;
+		return data.length;
 	}
 
 	/**
@@ -164,6 +533,44 @@ public class LinkLayer implements Dot11Interface {
 				summary += "Command 3: Beacon frequency\n";
 				summary += "\ta nonnegative input will set the frequency of beacon frames\n";
 				summary += "\tto that many seconds. A negative value will disable beacon frames.\n";
+				summary += "Command 4: ARQ window size\n";
+				summary += "\tnumber of unacknowledged frames allowed per destination (selective repeat),\n";
+				summary += "\tonce the destination has agreed to it.\n";
+				summary += "\tA value of 1 or less selects stop-and-wait. Current Value: " + this.arqWindow + "\n";
+				summary += "Command 5: Block ACK\n";
+				summary += "\ta nonzero input offers (and accepts) one ACK per burst of windowed frames.\n";
+				summary += "\tAn input of 0 stops making new agreements. Current Value: " + this.blockAck + "\n";
+				summary += "Command 6: Frame aggregation\n";
+				summary += "\ta nonzero input packs queued data for the same destination into one frame.\n";
+				summary += "\tCurrent Value: " + this.aggregate + "\n";
+				summary += "Command 7: Compress data to MAC address\n";
+				summary += "\tinput is the destination (-1 for broadcast) to compress data for.\n";
+				summary += "Command 8: Stop compressing data to MAC address\n";
+				summary += "\tCurrent Value: " + this.compressTo + "\n";
+				summary += "Command 9: Transmit queue depth\n";
+				summary += "\tnumber of messages that may wait for each destination. Current Value: "
+						+ this.queueDepth + "\n";
+				summary += "Command 10: Transmit queue budget\n";
+				summary += "\tbytes of packets that may wait across all destinations. Current Value: "
+						+ this.queueBudget + "\n";
+				summary += "Command 11: RTS/CTS threshold\n";
+				summary += "\tframes with more data bytes than this reserve the channel with RTS/CTS first.\n";
+				summary += "\tA negative input turns RTS/CTS off. Current Value: " + this.rtsThreshold + "\n";
+				summary += "Command 12: Receive queue depth\n";
+				summary += "\tnumber of messages that may wait to be received. Current Value: " + this.recvDepth + "\n";
+				summary += "Command 13: Receive queue budget\n";
+				summary += "\tdata bytes of messages that may wait to be received. Current Value: "
+						+ this.recvBudget + "\n";
+				summary += "Command 14: Receive overflow policy\n";
+				summary += "\twhen the receive queue is full, 0 drops new data, 1 drops the oldest data waiting\n";
+				summary += "\tand 2 withholds the ACK so that the data is sent again. Current Value: "
+						+ this.recvOverflow + "\n";
+				summary += "\tDropped so far: " + this.receiver.dropped() + ", ACKs withheld: "
+						+ this.receiver.withheld() + "\n";
+				summary += "Command 15: Transmit handoff ring capacity\n";
+				summary += "\tmessages that may be handed to the sender before a producer moves them onto\n";
+				summary += "\ttheir queues itself; rounded up to a power of two. Current Value: "
+						+ this.sender.ringCapacity() + "\n";
 				this.out.println(summary);
 				return 0;
 			}
@@ -190,6 +597,95 @@ public class LinkLayer implements Dot11Interface {
 				return val;
 			}
 
+			case 4: {
+				this.arqWindow = Math.max(1, Math.min(val, Receiver.MAX_WINDOW));
+				this.out.println("Setting ARQ window size to: " + this.arqWindow);
+				this.status = SUCCESS;
+				return this.arqWindow;
+			}
+
+			case 5: {
+				this.blockAck = val != 0;
+				this.out.println("Setting block ACK to: " + this.blockAck);
+				this.status = SUCCESS;
+				return val;
+			}
+
+			case 6: {
+				this.aggregate = val != 0;
+				this.out.println("Setting frame aggregation to: " + this.aggregate);
+				this.status = SUCCESS;
+				return val;
+			}
+
+			case 7: {
+				this.compressTo.add((short) val);
+				this.out.println("Compressing data to MAC " + (short) val);
+				this.status = SUCCESS;
+				return val;
+			}
+
+			case 8: {
+				this.compressTo.remove((short) val);
+				this.out.println("Not compressing data to MAC " + (short) val);
+				this.status = SUCCESS;
+				return val;
+			}
+
+			case 9: {
+				this.queueDepth = Math.max(1, val);
+				this.out.println("Setting transmit queue depth to: " + this.queueDepth);
+				this.status = SUCCESS;
+				return this.queueDepth;
+			}
+
+			case 10: {
+				this.queueBudget = Math.max(0, val);
+				this.out.println("Setting transmit queue budget to: " + this.queueBudget);
+				this.status = SUCCESS;
+				return this.queueBudget;
+			}
+
+			case 11: {
+				this.rtsThreshold = Math.max(-1, val);
+				this.out.println("Setting RTS/CTS threshold to: " + this.rtsThreshold);
+				this.status = SUCCESS;
+				return this.rtsThreshold;
+			}
+
+			case 12: {
+				this.recvDepth = Math.max(1, val);
+				this.out.println("Setting receive queue depth to: " + this.recvDepth);
+				this.status = SUCCESS;
+				return this.recvDepth;
+			}
+
+			case 13: {
+				this.recvBudget = Math.max(0, val);
+				this.out.println("Setting receive queue budget to: " + this.recvBudget);
+				this.status = SUCCESS;
+				return this.recvBudget;
+			}
+
+			case 14: {
+				if (val < OVERFLOW_DROP_NEWEST || val > OVERFLOW_WITHHOLD_ACK) {
+					this.out.println("Unknown receive overflow policy: " + val);
+					this.status = ILLEGAL_ARGUMENT;
+					return this.recvOverflow;
+				}
+				this.recvOverflow = val;
+				this.out.println("Setting receive overflow policy to: " + this.recvOverflow);
+				this.status = SUCCESS;
+				return this.recvOverflow;
+			}
+
+			case 15: {
+				int capacity = this.sender.resizeRing(Math.max(1, val));
+				this.out.println("Setting transmit handoff ring capacity to: " + capacity);
+				this.status = SUCCESS;
+				return capacity;
+			}
+
 			default:
 				this.out.println("Unknown command: (" + cmd + ", " + val + ")");
 				this.out.println("Enter command (0, 0) for option summary.");
@@ -199,7 +695,7 @@ public class LinkLayer implements Dot11Interface {
 	}
 
 	/**
-	 * The local time is the current {@code RF} time plus some offset
+	 * The local time is the current {@code Medium} time plus some offset
 	 * 
 	 * @return current local time
 	 */
@@ -232,24 +728,109 @@ public class LinkLayer implements Dot11Interface {
 	}
 
 	/**
-	 * Block until the given local time. Performs a combination of sleeping
-	 * and spin waiting.
+	 * Block until the given local time. The wait itself is performed by
+	 * our {@link Clock}.
 	 * 
-	 * @param targetTime local {@code RF} time in milliseconds
+	 * @param targetTime local {@code Medium} time in milliseconds
 	 * @throws InterruptedException
 	 */
 	public void waitUntil(long targetTime) throws InterruptedException {
-		long busyWaitTime = 2; // ms
+		long delay;
+		// the local and clock time bases can disagree by a tick, so re-check
+		while ((delay = targetTime - this.time()) > 0) {
+			this.clock.sleepUntil(this.clock.time() + delay);
+		}
+	}
 
-		// sleep wait
-		long sleepTime = targetTime - busyWaitTime - this.time();
-		if (sleepTime >= 0) {
-			Thread.sleep(sleepTime);
+	/**
+	 * Returns true if the local time has reached the given time, and otherwise
+	 * sets {@code wait} to wake the caller when it does.
+	 * 
+	 * @param targetTime local {@code Medium} time in milliseconds
+	 */
+	public boolean reached(long targetTime, Clock.Wait wait) {
+		long delay = targetTime - this.time();
+		if (delay <= 0) {
+			return true;
 		}
+		wait.until(this.clock.time() + delay);
+		return false;
+	}
 
-		// busy wait
-		while (this.time() < targetTime) {
-			Thread.onSpinWait();
+	/**
+	 * Like {@link #reached(long, Clock.Wait)}, but also returns true as soon as
+	 * the channel is busy, and waits to be woken by the channel turning busy.
+	 * Media that cannot report changes are only checked once the time comes.
+	 * 
+	 * @param targetTime local {@code Medium} time in milliseconds
+	 */
+	public boolean reachedOrBusy(long targetTime, Clock.Wait wait) {
+		long delay = targetTime - this.time();
+		if (delay <= 0 || (this.channelChanged != null && this.busy())) {
+			return true;
 		}
+		wait.on(this.channelChanged, this.clock.time() + delay);
+		return false;
+	}
+
+	/**
+	 * Returns true if the channel is idle, and otherwise sets {@code wait} to
+	 * wake the caller when that may have changed. Media that cannot report
+	 * changes are checked on every boundary, which is as soon as anything that
+	 * waits for the next boundary could react anyway.
+	 */
+	public boolean idle(Clock.Wait wait) {
+		if (!this.busy()) {
+			return true;
+		}
+		if (this.channelChanged != null) {
+			// the medium does not report the NAV running out
+			wait.on(this.channelChanged, this.reserved() ? this.navUntil : Long.MAX_VALUE);
+		} else {
+			this.reached(this.nearestBoundaryTo(this.time() + 1), wait);
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the channel is busy, either on the medium or because an
+	 * RTS or CTS we overheard has reserved it
+	 */
+	public boolean busy() {
+		return this.rf.inUse() || this.reserved();
+	}
+
+	/**
+	 * Returns true while an RTS or CTS we overheard reserves the channel
+	 * (virtual carrier sense)
+	 */
+	public boolean reserved() {
+		return this.clock.time() < this.navUntil;
+	}
+
+	/**
+	 * Defer to a frame exchange between other stations, announced by an RTS
+	 * or CTS that just ended
+	 * 
+	 * @param duration ms the exchange will go on for
+	 */
+	void reserve(long duration) {
+		long until = this.clock.time() + duration;
+		if (until > this.navUntil) {
+			this.navUntil = until;
+			if (this.channelChanged != null) {
+				this.channelChanged.signal();
+			}
+		}
+	}
+
+	/**
+	 * Block for the given number of milliseconds.
+	 * 
+	 * @param millis time to sleep
+	 * @throws InterruptedException
+	 */
+	public void sleep(long millis) throws InterruptedException {
+		this.clock.sleepUntil(this.clock.time() + millis);
 	}
 }
@@ -0,0 +1,82 @@
+package wifi;
+
+/**
+ * The shared channel underneath a {@link LinkLayer}. These are exactly the
+ * calls the link layer makes on {@code rf.RF}, pulled out so that the
+ * multicast implementation ({@link RFMedium}) can be swapped for an in-process
+ * one ({@link SimulatedMedium}).
+ */
+public interface Medium {
+    /**
+     * Put the given frame on the air. Like {@code RF.transmit()} this blocks
+     * until the frame has finished transmitting.
+     * 
+     * @param frame the bytes to transmit
+     * @return the number of bytes transmitted
+     */
+    int transmit(byte[] frame);
+
+    /**
+     * Put the given frame on the air for a {@link Clock.Handler}, which may
+     * not block. If the medium can, it returns at once and sets {@code wait}
+     * to the end of the frame; the default transmits the whole frame first.
+     * 
+     * @param frame the bytes to transmit
+     * @param wait  set to when the frame has finished, if that is later
+     * @return the number of bytes transmitted
+     */
+    default int transmit(byte[] frame, Clock.Wait wait) {
+        return this.transmit(frame);
+    }
+
+    /**
+     * Block until a frame arrives and return it. Returns {@code null} if the
+     * calling thread was interrupted while waiting.
+     */
+    byte[] receive();
+
+    /**
+     * Take the next frame for a {@link Clock.Handler}, which may not block.
+     * If the medium can, it returns null at once when no frame has arrived
+     * and sets {@code wait} to wake the caller when one does; the default
+     * blocks like {@link #receive()}.
+     * 
+     * @param wait set to when a frame may have arrived, if none has
+     * @return the frame, or null if there is none yet
+     */
+    default byte[] receive(Clock.Wait wait) {
+        return this.receive();
+    }
+
+    /**
+     * Returns true iff the channel is currently in use
+     */
+    boolean inUse();
+
+    /**
+     * Register a callback to run whenever {@link #inUse()} may have changed,
+     * so callers can park instead of polling. The callback runs on whichever
+     * thread caused the change and must not block.
+     * 
+     * @param listener the callback
+     * @return false if this medium cannot report changes, in which case
+     *         {@link #inUse()} has to be polled
+     */
+    default boolean onChange(Runnable listener) {
+        return false;
+    }
+
+    /**
+     * Returns the time in ms a frame of the given length occupies the
+     * channel. The default is the airtime of the RF layer, which
+     * {@link SimulatedMedium#airtime(int)} mirrors.
+     */
+    default long airtime(int len) {
+        return (long) (len + SimulatedMedium.HEADER_BYTES) * SimulatedMedium.MS_PER_BYTE;
+    }
+
+    /**
+     * Returns the medium's clock in milliseconds
+     */
+    long clock();
+}
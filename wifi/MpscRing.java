@@ -0,0 +1,86 @@
+package wifi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue that any number of threads may offer to and one thread at
+ * a time may poll, with all of its slots allocated up front. A producer
+ * claims the slot at the tail with a CAS and then fills it; the consumer
+ * takes slots in order and stops at the first one not filled yet. Neither
+ * side takes a lock, and an offer allocates nothing.
+ *
+ * @param <E> the elements, which may not be null
+ */
+public class MpscRing<E> {
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    /** Number of slots ever claimed */
+    private final AtomicLong tail = new AtomicLong();
+    /** Number of slots ever polled; written by the consumer only */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity the least number of elements the ring must hold; it is
+     *                 rounded up to a power of two
+     */
+    public MpscRing(int capacity) {
+        int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Add an element at the tail. Safe to call from any thread.
+     *
+     * @return false if the ring is full
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long tail;
+        do {
+            tail = this.tail.get();
+            if (tail - this.head.get() > this.mask) {
+                return false;
+            }
+        } while (!this.tail.compareAndSet(tail, tail + 1));
+        // the consumer emptied this slot before moving the head past it
+        this.slots.lazySet((int) tail & this.mask, element);
+        return true;
+    }
+
+    /**
+     * Take the element at the head. Only one thread may poll at a time.
+     *
+     * @return the element, or null if the ring is empty or its head slot has
+     *         been claimed but not yet filled
+     */
+    public E poll() {
+        long head = this.head.get();
+        int i = (int) head & this.mask;
+        E element = this.slots.get(i);
+        if (element == null) {
+            return null;
+        }
+        this.slots.lazySet(i, null);
+        this.head.lazySet(head + 1); // publishes the empty slot
+        return element;
+    }
+
+    /**
+     * Returns true if every slot ever claimed has been polled. A slot claimed
+     * but not yet filled counts, although {@link #poll()} cannot take it yet.
+     */
+    public boolean isEmpty() {
+        return this.tail.get() == this.head.get();
+    }
+
+    /**
+     * Returns the number of slots
+     */
+    public int capacity() {
+        return this.mask + 1;
+    }
+}
@@ -1,7 +1,9 @@
 package wifi;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.zip.CRC32;
 
 import rf.RF;
@@ -11,15 +13,80 @@ import rf.RF;
  * the RF layer. It provides methods to access data and metadata fields
  * and calculate checksums. See the packet structure specified in the 
  * documentation directory.
+ * <p>
+ * A packet is a view over a byte array holding the frame exactly as it goes
+ * on the air. Reading fields never copies, and a packet can be pointed at
+ * another array ({@link #wrap(byte[])}) or rewritten in place
+ * ({@link #encode(int, int, short, short, byte[], int, int)}), so hot paths
+ * can reuse one packet and one array instead of allocating per frame. Only
+ * control frames are handled that way throughout; a data frame received
+ * gets a packet of its own, since it outlives the frame.
  */
 public class Packet {
-    public static final int DATA = 0, ACK = 1, BEACON = 2;
+    public static final int DATA = 0, ACK = 1, BEACON = 2, BLOCK_ACK = 3, RTS = 4, CTS = 5, BLOCK_ACK_REQ = 6,
+            DATA_EXT = 7;
+
+    /**
+     * The payload of a {@code DATA_EXT} packet starts with a flags byte.
+     * {@code FLAG_AGGREGATE} means the rest of the payload is a run of
+     * subframes, each a 2 byte sequence number, a 2 byte length and the data.
+     * Otherwise the payload is one fragment of a message (possibly the only
+     * one): the low bits hold the fragment number, {@code FLAG_MORE_FRAGMENTS}
+     * is set on every fragment but the last and {@code FLAG_COMPRESSED} means
+     * the whole message was run through {@link Compression}.
+     */
+    public static final int FLAG_AGGREGATE = 0x80, FLAG_MORE_FRAGMENTS = 0x40, FLAG_COMPRESSED = 0x20,
+            FRAGMENT_MASK = 0x1F;
+    public static final int FLAGS_SIZE = 1, SUBFRAME_HEADER_SIZE = 4;
+
+    /** Number of frames a single block ACK can report on */
+    public static final int BLOCK_ACK_WINDOW = Long.SIZE;
+
+    /** Number of distinct sequence numbers (the control field holds 12 bits) */
+    public static final int SEQ_SPACE = 1 << 12;
 
     public static final int MIN_PACKET_SIZE = 10;
     public static final int MAX_DATA_SIZE = RF.aMPDUMaximumLength - MIN_PACKET_SIZE;
 
-    private final CRC32 checksum = new CRC32();
-    private final ByteBuffer buf;
+    /** Size of an {@code RTS} or {@code CTS}, whose payload is the duration of the exchange */
+    public static final int RESERVATION_SIZE = MIN_PACKET_SIZE + Integer.BYTES;
+
+    /** Largest message that can be split into fragments */
+    public static final int MAX_FRAGMENTS = FRAGMENT_MASK + 1, FRAGMENT_SIZE = MAX_DATA_SIZE - FLAGS_SIZE;
+    public static final int MAX_MESSAGE_SIZE = MAX_FRAGMENTS * FRAGMENT_SIZE;
+
+    /** CRC32 keeps state, so every thread gets its own */
+    private static final ThreadLocal<CRC32> CHECKSUM = ThreadLocal.withInitial(CRC32::new);
+
+    /** The resend bit in the first byte of the control field */
+    private static final int RESEND_BIT = 0x10;
+    /**
+     * CRC32 is linear: flipping bits in a frame flips the bits of its CRC by
+     * the CRC of the flipped bits alone (without the init and final XOR).
+     * {@code RESEND_DELTA[n]} is that difference for the resend bit in a frame
+     * whose checksummed part is {@code n} bytes long, so marking a resend does
+     * not have to run over the whole frame again.
+     */
+    private static final int[] RESEND_DELTA = new int[RF.aMPDUMaximumLength - 4 + 1];
+
+    static {
+        int[] table = new int[256];
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? 0xEDB88320 ^ (c >>> 1) : c >>> 1;
+            }
+            table[i] = c;
+        }
+        // the resend bit alone, then one zero byte at a time
+        int delta = table[RESEND_BIT];
+        for (int n = 1; n < RESEND_DELTA.length; n++) {
+            RESEND_DELTA[n] = delta;
+            delta = table[delta & 0xFF] ^ (delta >>> 8);
+        }
+    }
+
+    private byte[] bytes;
 
     /**
      * Create a data packed given the specified fields. An exception
@@ -34,15 +101,149 @@ public class Packet {
      * @param len       The number of bytes to copy from the given array
      */
     public Packet(int type, int seq, short dest, short source, byte[] data, int len) throws IndexOutOfBoundsException{
+        this(type, seq, dest, source, data, 0, len);
+    }
+
+    /**
+     * Same as above, copying the data portion from the given offset
+     * 
+     * @param offset    The index in {@code data} of the first byte to copy
+     */
+    public Packet(int type, int seq, short dest, short source, byte[] data, int offset, int len) throws IndexOutOfBoundsException{
+        this.bytes = new byte[MIN_PACKET_SIZE + len];
+        this.encode(type, seq, dest, source, data, offset, len);
+    }
+
+    /**
+     * Create a reusable packet over a zeroed array with room for exactly
+     * {@code dataSize} bytes of data, to be filled in with {@code encode}.
+     */
+    public Packet(int dataSize) {
+        this.bytes = new byte[MIN_PACKET_SIZE + dataSize];
+    }
+
+    /**
+     * Rewrite this packet in place. The backing array is reused, so its data
+     * portion must be exactly {@code len} bytes long.
+     * 
+     * @return this packet
+     * @throws IllegalArgumentException if {@code len} does not match the array
+     */
+    public Packet encode(int type, int seq, short dest, short source, byte[] data, int offset, int len) {
+        if (len != this.dataSize()) {
+            throw new IllegalArgumentException("Packet holds " + this.dataSize() + " data bytes, not " + len);
+        }
         short control = (short) (type << 13); // last 3 bits of type at head
         control |= seq & 0xFFF; // last 12 bits of seq at tail
-
-        this.buf = ByteBuffer.allocate(MIN_PACKET_SIZE + len);
-        this.buf.putShort(control).putShort(dest).putShort(source);
+        putShort(this.bytes, 0, control);
+        putShort(this.bytes, 2, dest);
+        putShort(this.bytes, 4, source);
         if (data != null) {
-            this.buf.put(data, 0, len);
+            System.arraycopy(data, offset, this.bytes, 6, len);
         }
-        this.buf.putInt(this.checkSum());
+        putInt(this.bytes, this.size() - 4, this.checkSum());
+        return this;
+    }
+
+    /**
+     * Rewrite this packet in place as a block ACK (see {@link #Packet(short, short, int, long)}).
+     * 
+     * @return this packet
+     */
+    public Packet encodeBlockAck(short dest, short source, int startSeq, long bitmap) {
+        putLong(this.bytes, 6, bitmap);
+        return this.encode(BLOCK_ACK, startSeq, dest, source, null, 0, Long.BYTES);
+    }
+
+    /**
+     * Rewrite this packet in place as a beacon (see {@link #Packet(short, long)}).
+     * 
+     * @return this packet
+     */
+    public Packet encodeBeacon(short source, long time) {
+        putLong(this.bytes, 6, time);
+        return this.encode(BEACON, 0, (short) -1, source, null, 0, Long.BYTES);
+    }
+
+    /**
+     * Rewrite this packet in place as an {@code RTS} or {@code CTS}. The
+     * duration is how long the rest of the exchange will take once this frame
+     * has ended, in ms.
+     * 
+     * @return this packet
+     */
+    public Packet encodeReservation(int type, int seq, short dest, short source, int duration) {
+        putInt(this.bytes, 6, duration);
+        return this.encode(type, seq, dest, source, null, 0, Integer.BYTES);
+    }
+
+    /**
+     * Pack data packets for the same destination into a single
+     * aggregate packet carrying the first packet's sequence number.
+     * 
+     * @param frames    the packets to pack, in order
+     */
+    public static Packet aggregate(List<Packet> frames) {
+        Packet first = frames.get(0);
+        int len = FLAGS_SIZE;
+        for (Packet frame : frames) {
+            len += SUBFRAME_HEADER_SIZE + frame.dataSize();
+        }
+        // build the payload straight into the new frame
+        Packet pkt = new Packet(len);
+        pkt.bytes[6] = (byte) FLAG_AGGREGATE;
+        int pos = 6 + FLAGS_SIZE;
+        for (Packet frame : frames) {
+            putShort(pkt.bytes, pos, frame.getSeqNum());
+            putShort(pkt.bytes, pos + 2, (short) frame.dataSize());
+            System.arraycopy(frame.bytes, 6, pkt.bytes, pos + SUBFRAME_HEADER_SIZE, frame.dataSize());
+            pos += SUBFRAME_HEADER_SIZE + frame.dataSize();
+        }
+        return pkt.encode(DATA_EXT, first.getSeqNum(), first.getDest(), first.getSource(), null, 0, len);
+    }
+
+    /**
+     * Create one fragment of a message too large for a single packet
+     * 
+     * @param seq       The sequence number of this fragment
+     * @param data      The whole message
+     * @param offset    The index in {@code data} of the first byte of this fragment
+     * @param len       The number of bytes in this fragment
+     * @param fragNum   The position of this fragment in the message
+     * @param more      True if further fragments follow
+     * @param compressed True if the message is compressed
+     */
+    public static Packet fragment(int seq, short dest, short source, byte[] data, int offset, int len, int fragNum,
+            boolean more, boolean compressed) {
+        Packet pkt = new Packet(FLAGS_SIZE + len);
+        pkt.bytes[6] = (byte) ((fragNum & FRAGMENT_MASK) | (more ? FLAG_MORE_FRAGMENTS : 0)
+                | (compressed ? FLAG_COMPRESSED : 0));
+        System.arraycopy(data, offset, pkt.bytes, 6 + FLAGS_SIZE, len);
+        return pkt.encode(DATA_EXT, seq, dest, source, null, 0, FLAGS_SIZE + len);
+    }
+
+    /**
+     * Join the fragments of a message into a single data packet, copying
+     * each fragment's data once
+     * 
+     * @param seq       The sequence number of the first fragment
+     * @param fragments The fragments, in order
+     * @param count     The number of fragments in the message
+     */
+    public static Packet reassemble(int seq, Packet[] fragments, int count) {
+        int len = 0;
+        for (int i = 0; i < count; i++) {
+            len += fragments[i].dataSize() - FLAGS_SIZE;
+        }
+        Packet pkt = new Packet(len);
+        int pos = 6;
+        for (int i = 0; i < count; i++) {
+            int fragLen = fragments[i].dataSize() - FLAGS_SIZE;
+            System.arraycopy(fragments[i].bytes, 6 + FLAGS_SIZE, pkt.bytes, pos, fragLen);
+            pos += fragLen;
+        }
+        Packet first = fragments[0];
+        return pkt.encode(DATA, seq, first.getDest(), first.getSource(), null, 0, len);
     }
 
     /**
@@ -51,7 +252,17 @@ public class Packet {
      * @param array
      */
     public Packet(byte[] array) {
-        this.buf = ByteBuffer.wrap(array);
+        this.bytes = array;
+    }
+
+    /**
+     * Point this packet at another array without copying it
+     * 
+     * @return this packet
+     */
+    public Packet wrap(byte[] array) {
+        this.bytes = array;
+        return this;
     }
 
     /**
@@ -60,16 +271,29 @@ public class Packet {
      * @param time 
      */
     public Packet(short source, long time) {
-        short control = (short) (BEACON << 13);
-        this.buf = ByteBuffer.allocate(MIN_PACKET_SIZE + 8);
-        this.buf.putShort(control).putShort((short) -1).putShort(source).putLong(time).putInt(this.checkSum());
+        this(Long.BYTES);
+        this.encodeBeacon(source, time);
+    }
+
+    /**
+     * This constructor is used specifically for block ACK packets. Bit
+     * {@code i} of the bitmap reports whether frame {@code startSeq + i}
+     * was received.
+     * @param dest      the destination MAC address
+     * @param source    the source MAC address
+     * @param startSeq  sequence number of the first frame covered
+     * @param bitmap    received frames
+     */
+    public Packet(short dest, short source, int startSeq, long bitmap) {
+        this(Long.BYTES);
+        this.encodeBlockAck(dest, source, startSeq, bitmap);
     }
 
     /**
      * returns a reference to the array used to back this packet
      */
     public byte[] asBytes() {
-        return this.buf.array();
+        return this.bytes;
     }
 
     /**
@@ -78,62 +302,204 @@ public class Packet {
      */
     public byte[] extractData() {
         // make a new array and fill it with just the data segment of the packet
-        return Arrays.copyOfRange(this.buf.array(), 6, this.size() - 4);
+        return Arrays.copyOfRange(this.bytes, 6, this.size() - 4);
+    }
+
+    /**
+     * Copies as much of the data portion of this packet as fits into
+     * {@code dst}, starting at {@code offset}, without allocating
+     * 
+     * @return the number of bytes copied
+     */
+    public int copyData(byte[] dst, int offset) {
+        int len = Math.min(this.dataSize(), dst.length - offset);
+        System.arraycopy(this.bytes, 6, dst, offset, len);
+        return len;
+    }
+
+    /**
+     * Copies as much of the data portion of this packet as fits into the
+     * remaining space of {@code dst}, advancing its position
+     * 
+     * @return the number of bytes copied
+     */
+    public int copyData(ByteBuffer dst) {
+        int len = Math.min(this.dataSize(), dst.remaining());
+        dst.put(this.bytes, 6, len);
+        return len;
+    }
+
+    /**
+     * Returns the number of bytes in the data portion of this packet
+     */
+    public int dataSize() {
+        return this.size() - MIN_PACKET_SIZE;
+    }
+
+    /**
+     * Gets the flags byte of a {@code DATA_EXT} packet, or 0 for
+     * any other packet
+     */
+    public int getFlags() {
+        if (this.getFrameType() != DATA_EXT || this.dataSize() < FLAGS_SIZE) {
+            return 0;
+        }
+        return this.bytes[6] & 0xFF;
+    }
+
+    /**
+     * Returns true if this packet is a fragment of a message
+     */
+    public boolean isFragment() {
+        return this.getFrameType() == DATA_EXT && (this.getFlags() & FLAG_AGGREGATE) == 0;
+    }
+
+    /**
+     * Returns true if this fragment's message is compressed
+     */
+    public boolean isCompressed() {
+        return (this.getFlags() & FLAG_COMPRESSED) != 0;
+    }
+
+    /**
+     * Returns the position of a fragment in its message
+     */
+    public int getFragmentNumber() {
+        return this.getFlags() & FRAGMENT_MASK;
+    }
+
+    /**
+     * Returns true if more fragments of the same message follow this one
+     */
+    public boolean hasMoreFragments() {
+        return (this.getFlags() & FLAG_MORE_FRAGMENTS) != 0;
+    }
+
+    /**
+     * Splits an aggregate packet back into the data packets it was
+     * built from. A truncated trailing subframe is dropped.
+     */
+    public List<Packet> subframes() {
+        List<Packet> frames = new ArrayList<>();
+        int pos = 6 + FLAGS_SIZE;
+        int end = this.size() - 4;
+        while (pos + SUBFRAME_HEADER_SIZE <= end) {
+            int seq = getShort(this.bytes, pos);
+            int len = getShort(this.bytes, pos + 2) & 0xFFFF;
+            pos += SUBFRAME_HEADER_SIZE;
+            if (pos + len > end) {
+                break;
+            }
+            frames.add(new Packet(DATA, seq, this.getDest(), this.getSource(), this.bytes, pos, len));
+            pos += len;
+        }
+        return frames;
+    }
+
+    /**
+     * Returns the number of data packets carried by this packet
+     */
+    public int countFrames() {
+        if ((this.getFlags() & FLAG_AGGREGATE) == 0) {
+            return 1;
+        }
+        int count = 0;
+        int pos = 6 + FLAGS_SIZE;
+        int end = this.size() - 4;
+        while (pos + SUBFRAME_HEADER_SIZE <= end) {
+            pos += SUBFRAME_HEADER_SIZE + (getShort(this.bytes, pos + 2) & 0xFFFF);
+            count++;
+        }
+        return count;
     }
 
     /**
      * Gets the destination MAC address of this packet
      */
     public short getDest() {
-        return this.buf.getShort(2);
+        return getShort(this.bytes, 2);
     }
 
     /**
      * Gets the source MAC address of this packet
      */
     public short getSource() {
-        return this.buf.getShort(4);
+        return getShort(this.bytes, 4);
     }
 
     /**
      * Gets the type of this packet.
      */
     public int getFrameType() {
-        byte control = this.buf.get(0);
-        return control >>> 5;
+        return (this.bytes[0] & 0xFF) >>> 5;
     }
 
     /**
      * Returns true iff this packet has been flagged as a resend
      */
     public boolean isResend() {
-        byte control = this.buf.get(0);
-        return (control & 0x10) != 0;
+        return (this.bytes[0] & RESEND_BIT) != 0;
     }
 
     /**
      * Gets the sequence number of this packet
      */
     public short getSeqNum() {
-        short control = this.buf.getShort(0);
+        short control = getShort(this.bytes, 0);
         return (short) (control & 0xFFF);
     }
 
+    /**
+     * Change the sequence number in place, keeping the type and resend flag
+     */
+    public void setSeqNum(int seq) {
+        short control = getShort(this.bytes, 0);
+        putShort(this.bytes, 0, (short) ((control & ~0xFFF) | (seq & 0xFFF)));
+        putInt(this.bytes, this.size() - 4, this.checkSum());
+    }
+
     /**
      * Calculates the CRC checksum for this packet, and writes
      * it to the end of the packet
      */
     public int checkSum() {
-        this.checksum.reset();
-        this.checksum.update(this.buf.array(), 0, this.size() - 4);
-        return (int) this.checksum.getValue();
+        CRC32 checksum = CHECKSUM.get();
+        checksum.reset();
+        checksum.update(this.bytes, 0, this.size() - 4);
+        return (int) checksum.getValue();
     }
 
     /**
      * Gets the checksum from this packet
      */
     public int getCrc() {
-        return this.buf.getInt(this.size() - 4);
+        return getInt(this.bytes, this.size() - 4);
+    }
+
+    /**
+     * Returns true if this frame is long enough to have a header and is sent
+     * to the given address or broadcast. This only reads the header, so it is
+     * cheap enough to run before {@link #isValid()} on every frame overheard.
+     */
+    public boolean isAddressedTo(short mac) {
+        if (this.size() < MIN_PACKET_SIZE) {
+            return false;
+        }
+        short dest = this.getDest();
+        return dest == mac || dest == -1;
+    }
+
+    /**
+     * Returns true if this frame is an {@code RTS} or {@code CTS}, which every
+     * station has to read to defer to the exchange it announces. Like
+     * {@link #isAddressedTo(short)} this only reads the header.
+     */
+    public boolean isReservation() {
+        if (this.size() != RESERVATION_SIZE) {
+            return false;
+        }
+        int type = this.getFrameType();
+        return type == RTS || type == CTS;
     }
 
     /**
@@ -151,10 +517,11 @@ public class Packet {
      * Mark this packet as a resend
      */
     public void flagAsResend() {
-        byte control = this.buf.get(0);
-        control |= 0x10;
-        this.buf.put(0, control);
-        this.buf.putInt(this.size() - 4, this.checkSum());
+        if ((this.bytes[0] & RESEND_BIT) != 0) {
+            return;
+        }
+        this.bytes[0] |= RESEND_BIT;
+        putInt(this.bytes, this.size() - 4, this.getCrc() ^ RESEND_DELTA[this.size() - 4]);
     }
 
     /**
@@ -162,14 +529,59 @@ public class Packet {
      * get the time listed in the data portion
      */
     public long getTime(){
-        return this.buf.getLong(6);
+        return getLong(this.bytes, 6);
+    }
+
+    /**
+     * This method is specific to block ACK packets. It will
+     * get the bitmap of received frames
+     */
+    public long getBitmap() {
+        return getLong(this.bytes, 6);
+    }
+
+    /**
+     * This method is specific to {@code RTS} and {@code CTS} packets. It will
+     * get the duration of the exchange in ms
+     */
+    public int getDuration() {
+        return getInt(this.bytes, 6);
     }
 
     /**
      * Returns how many bytes this packet is
      */
     public int size() {
-        return this.buf.array().length;
+        return this.bytes.length;
+    }
+
+    // big-endian field access straight on the array, so reading a frame allocates nothing
+
+    private static short getShort(byte[] a, int i) {
+        return (short) ((a[i] << 8) | (a[i + 1] & 0xFF));
+    }
+
+    private static int getInt(byte[] a, int i) {
+        return (getShort(a, i) << 16) | (getShort(a, i + 2) & 0xFFFF);
+    }
+
+    private static long getLong(byte[] a, int i) {
+        return ((long) getInt(a, i) << 32) | (getInt(a, i + 4) & 0xFFFFFFFFL);
+    }
+
+    private static void putShort(byte[] a, int i, short v) {
+        a[i] = (byte) (v >> 8);
+        a[i + 1] = (byte) v;
+    }
+
+    private static void putInt(byte[] a, int i, int v) {
+        putShort(a, i, (short) (v >> 16));
+        putShort(a, i + 2, (short) v);
+    }
+
+    private static void putLong(byte[] a, int i, long v) {
+        putInt(a, i, (int) (v >> 32));
+        putInt(a, i + 4, (int) v);
     }
 
     @Override
@@ -185,6 +597,21 @@ public class Packet {
             case BEACON:
                 str += "BEACON";
                 break;
+            case BLOCK_ACK:
+                str += "BLOCK_ACK ";
+                break;
+            case RTS:
+                str += "RTS ";
+                break;
+            case CTS:
+                str += "CTS ";
+                break;
+            case BLOCK_ACK_REQ:
+                str += "BLOCK_ACK_REQ ";
+                break;
+            case DATA_EXT:
+                str += "DATA_EXT ";
+                break;
             default:
                 return str + "INVALID]";
         }
@@ -194,7 +621,7 @@ public class Packet {
         if (size > MIN_PACKET_SIZE) {
             str += " ";
             for (int i = 6; i < size - 4; i++) {
-                str += (char) this.buf.get(i);
+                str += (char) this.bytes[i];
             }
         }
         return str + "]";
@@ -0,0 +1,158 @@
+package wifi;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * State kept per neighbour, by MAC address. The addresses are kept as
+ * primitives in an open-addressing table, so a lookup neither boxes the
+ * address nor takes a lock and may run on any thread. Adding a neighbour is
+ * synchronized and publishes the entry before anyone can find it. Neighbours
+ * are never removed: what they hold (sequence numbers, windows, timers) has
+ * to outlive any pause in their traffic.
+ *
+ * @param <V> the state kept for each neighbour
+ */
+public class PeerTable<V> implements Iterable<V> {
+    /** Slots to start with; grown to keep the table at most half full */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Written only under the lock, read without it; entries are final, so a lookup sees them whole */
+    private volatile Entry<V>[] slots;
+    private int size;
+
+    /**
+     * Creates the state of a neighbour on first contact
+     */
+    public interface Factory<V> {
+        V create(short mac);
+    }
+
+    @SuppressWarnings("unchecked")
+    public PeerTable() {
+        this.slots = (Entry<V>[]) new Entry<?>[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Returns the state of the given neighbour, or null if there is none
+     */
+    public V get(short mac) {
+        Entry<V>[] slots = this.slots;
+        int mask = slots.length - 1;
+        for (int i = hash(mac) & mask;; i = (i + 1) & mask) {
+            Entry<V> entry = slots[i];
+            if (entry == null) {
+                return null;
+            }
+            if (entry.mac == mac) {
+                return entry.value;
+            }
+        }
+    }
+
+    /**
+     * Returns the state of the given neighbour, creating it first if there is
+     * none. Only a neighbour's first contact takes the lock.
+     */
+    public V computeIfAbsent(short mac, Factory<V> factory) {
+        V value = this.get(mac);
+        return value != null ? value : this.add(mac, factory);
+    }
+
+    private synchronized V add(short mac, Factory<V> factory) {
+        V value = this.get(mac);
+        if (value != null) {
+            return value; // added while we waited for the lock
+        }
+        value = factory.create(mac);
+        Entry<V>[] slots = this.slots;
+        if (2 * (this.size + 1) > slots.length) {
+            slots = this.grow(slots);
+        }
+        put(slots, new Entry<>(mac, value));
+        this.size++;
+        this.slots = slots; // publishes the entry
+        return value;
+    }
+
+    /**
+     * Returns the number of neighbours
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * Iterates over the neighbours present when iteration starts, in no
+     * particular order
+     */
+    @Override
+    public Iterator<V> iterator() {
+        Entry<V>[] slots = this.slots;
+        return new Iterator<V>() {
+            private int next = this.skip(0);
+
+            private int skip(int i) {
+                while (i < slots.length && slots[i] == null) {
+                    i++;
+                }
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return this.next < slots.length;
+            }
+
+            @Override
+            public V next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                V value = slots[this.next].value;
+                this.next = this.skip(this.next + 1);
+                return value;
+            }
+        };
+    }
+
+    /**
+     * Copy the entries into a table twice the size. The old table stays
+     * intact for lookups already running on it.
+     */
+    @SuppressWarnings("unchecked")
+    private Entry<V>[] grow(Entry<V>[] slots) {
+        Entry<V>[] grown = (Entry<V>[]) new Entry<?>[2 * slots.length];
+        for (Entry<V> entry : slots) {
+            if (entry != null) {
+                put(grown, entry);
+            }
+        }
+        return grown;
+    }
+
+    private static <V> void put(Entry<V>[] slots, Entry<V> entry) {
+        int mask = slots.length - 1;
+        int i = hash(entry.mac) & mask;
+        while (slots[i] != null) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = entry;
+    }
+
+    /** Spreads neighbouring addresses across the table */
+    private static int hash(short mac) {
+        int h = (mac & 0xFFFF) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static class Entry<V> {
+        final short mac;
+        final V value;
+
+        Entry(short mac, V value) {
+            this.mac = mac;
+            this.value = value;
+        }
+    }
+}
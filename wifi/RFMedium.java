@@ -0,0 +1,34 @@
+package wifi;
+
+import rf.RF;
+
+/**
+ * A {@link Medium} backed by the multicast {@link RF} layer.
+ */
+public class RFMedium implements Medium {
+    private final RF rf;
+
+    public RFMedium() {
+        this.rf = new RF(null, null);
+    }
+
+    @Override
+    public int transmit(byte[] frame) {
+        return this.rf.transmit(frame);
+    }
+
+    @Override
+    public byte[] receive() {
+        return this.rf.receive();
+    }
+
+    @Override
+    public boolean inUse() {
+        return this.rf.inUse();
+    }
+
+    @Override
+    public long clock() {
+        return this.rf.clock();
+    }
+}
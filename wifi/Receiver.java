@@ -1,30 +1,63 @@
 package wifi;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import rf.RF;
 
 /**
  * This class implements methods for the receiving thread of the {@link LinkLayer}.
  * @author Tristan Gaeta
  */
-public class Receiver implements Runnable {
+public class Receiver implements Clock.Handler {
+    /** Default number of packets that may wait for the layer above */
     public static final int BUFFER_CAPACITY = 4;
+    /** Default data bytes that may wait for the layer above: a full queue of the largest messages */
+    public static final int BUFFER_BUDGET = BUFFER_CAPACITY * Packet.MAX_MESSAGE_SIZE;
+    /** Largest window selective repeat allows with 12-bit sequence numbers */
+    public static final int MAX_WINDOW = Packet.SEQ_SPACE / 2;
+    /** How long a gap in the sequence may hold back the frames after it */
+    public static final long HOLE_TIMEOUT = 2L * (RF.dot11RetryLimit + 1) * LinkLayer.ACK_TIMEOUT;
+    /** Number of messages that may be under reassembly at once */
+    public static final int MAX_REASSEMBLIES = 4;
 
     private final LinkLayer ll;
+    /** Packets for the layer above, bounded by the layer's receive depth and budget */
     private final BlockingQueue<Packet> queue;
-    private final HashMap<Short, Short> seqNums;
+    /** Data bytes of the packets in the queue */
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+    /** Packets dropped because the queue was full, and frames left unacknowledged for the same reason */
+    private volatile long dropped, withheld;
+    /** What we keep about each source we have heard data or a block ACK request from */
+    private final PeerTable<Neighbour> neighbours;
+    /** Number of messages under reassembly, not counting those given up on */
+    private int reassembling;
+    /** Raised when a packet is queued for the layer above */
+    private final Clock.Signal dataArrived;
+    /**
+     * Reused for every incoming frame, and for the replies we send other than
+     * ACKs. The {@link Responder} sends a copy of a reply, so it may be
+     * rewritten for the next frame while the last one is still on the air.
+     */
+    private final Packet incoming, blockAck, cts;
 
     public Receiver(LinkLayer ll) {
         this.ll = ll;
-        this.queue = new LinkedBlockingQueue<>(BUFFER_CAPACITY);
-        this.seqNums = new HashMap<>();
+        this.queue = new LinkedBlockingQueue<>();
+        this.neighbours = new PeerTable<>();
+        this.dataArrived = ll.clock.newSignal();
+        this.incoming = new Packet(0);
+        this.blockAck = new Packet(Long.BYTES);
+        this.cts = new Packet(Integer.BYTES);
     }
 
     public Packet nextPacket() {
         try {
-            return this.queue.take();
+            return this.nextPacket(Long.MAX_VALUE);
         } catch (InterruptedException e) {
             this.ll.log("Interrupted while blocking for incoming data.", LinkLayer.ERROR);
             return null;
@@ -32,101 +65,818 @@ public class Receiver implements Runnable {
     }
 
     /**
-     * This method will run indefinitely. It will wait for data incoming data,
-     * queueing it to be passed to the layer above only if it has a valid 
-     * checksum and sequence number.
+     * Take the next packet for the layer above, waiting until the given
+     * clock time at most
+     * 
+     * @return the packet, or null if none arrived in time
+     */
+    Packet nextPacket(long deadline) throws InterruptedException {
+        Packet pkt;
+        while ((pkt = this.poll()) == null) {
+            if (!this.dataArrived.await(deadline)) {
+                return this.poll();
+            }
+        }
+        return pkt;
+    }
+
+    /**
+     * Take the next packet for the layer above if one is waiting
+     */
+    Packet poll() {
+        Packet pkt = this.queue.poll();
+        if (pkt != null) {
+            this.queuedBytes.addAndGet(-pkt.dataSize());
+        }
+        return pkt;
+    }
+
+    /**
+     * Take the next packet for the layer above without blocking
+     * 
+     * @param wait set to when a packet may have arrived, if none has
+     * @return the packet, or null if there is none yet
+     */
+    Packet poll(Clock.Wait wait) {
+        Packet pkt = this.poll();
+        if (pkt == null) {
+            wait.on(this.dataArrived, Long.MAX_VALUE);
+        }
+        return pkt;
+    }
+
+    /**
+     * Returns the number of packets dropped because the layer above did not
+     * take them in time, whether acknowledged or not (broadcasts)
+     */
+    public long dropped() {
+        return this.dropped;
+    }
+
+    /**
+     * Returns the number of data frames left unacknowledged, so that they are
+     * sent again, because the layer above had no room for them
+     */
+    public long withheld() {
+        return this.withheld;
+    }
+
+    /**
+     * Handle incoming data, queueing it to be passed to the layer above only
+     * if it has a valid checksum and sequence number. Replies are posted to
+     * the {@link Responder}, which sends them while we take the next frame.
+     * The timers of the reorder buffers wake us even when nothing arrives.
      */
     @Override
-    public void run() {
-        long beaconUnpackTime;
-        while (!Thread.interrupted()) {
-            byte[] data = this.ll.rf.receive(); // block until data arrives
-            beaconUnpackTime = System.currentTimeMillis();
-            long txEndTime = this.ll.nextBoundary(); // record time transmission ends
-            Packet pkt = new Packet(data);
-
-            // Perform checksum
-            if (pkt.isValid()) {
-
-                int frameType = pkt.getFrameType();
+    public void step(Clock.Wait wait) {
+        while (true) {
+            long expiry = this.expireStale();
+            byte[] data = this.ll.rf.receive(wait);
+            if (data == null) {
+                wait.by(expiry);
+                return;
+            }
+            this.handle(data);
+        }
+    }
+
+    /**
+     * Act on a single frame taken off the medium
+     * 
+     * @param data the frame as received
+     */
+    void handle(byte[] data) {
+        Packet pkt = this.incoming.wrap(data);
+
+        // frames for other stations are dropped on the header alone, before any CRC work,
+        // except for reservations, which everyone defers to
+        if (!pkt.isAddressedTo(this.ll.macAddr) && !pkt.isReservation()) {
+            return;
+        }
+        long beaconUnpackTime = this.ll.clock.time();
+        long txEndTime = this.ll.nextBoundary(); // record time transmission ends
+
+        // Perform checksum
+        if (pkt.isValid()) {
+
+            int frameType = pkt.getFrameType();
+            if (this.ll.logs(LinkLayer.DEBUG)) {
                 this.ll.log("Received packet: " + pkt, LinkLayer.DEBUG);
+            }
+
+            switch (frameType) {
+                case Packet.DATA: {
+                    // data outlives this frame, so give it its own packet
+                    pkt = new Packet(data);
+                    this.acceptData(pkt, Collections.singletonList(pkt), txEndTime);
+                    break;
+                }
 
-                switch (frameType) {
-                    case Packet.DATA: {
-                        short dest = pkt.getDest();
-                        short source = pkt.getSource();
-                        short seqNum = pkt.getSeqNum();
-                        if (dest == this.ll.macAddr || dest == -1) {
-                            this.sendAck(source, dest, seqNum, txEndTime);
-
-                            // queue data
-                            this.seqNums.putIfAbsent(source, (short) 0);
-                            short expected = this.seqNums.get(source);
-
-                            if (seqNum >= expected) {
-                                if (seqNum > expected) {
-                                    this.ll.log("MAC " + source + " used a larger sequence number than expected", LinkLayer.DEBUG);
-                                }
-                                if (!this.queue.offer(pkt)) {
-                                    this.ll.log("Dropping incoming packet because queue is full", LinkLayer.ERROR);
-                                }
-                                this.seqNums.put(source, (short) ((seqNum + 1) & 0xFFF));
-                            } else {
-                                this.ll.log("Dropping incoming data with wrong sequence number", LinkLayer.DEBUG);
-                            }
-                        }
-                        break;
+                case Packet.DATA_EXT: {
+                    if ((pkt.getFlags() & Packet.FLAG_AGGREGATE) != 0) {
+                        this.acceptData(pkt, pkt.subframes(), txEndTime);
+                    } else {
+                        // a fragment, reassembled on delivery
+                        pkt = new Packet(data);
+                        this.acceptData(pkt, Collections.singletonList(pkt), txEndTime);
                     }
+                    break;
+                }
+
+                case Packet.ACK: {
+                    int seqNum = pkt.getSeqNum();
+                    short src = pkt.getSource();
+                    this.ll.sender.acknowledgePacket(seqNum, src);
+                    break;
+                }
 
-                    case Packet.ACK: {
-                        int seqNum = pkt.getSeqNum();
-                        short src = pkt.getSource();
-                        this.ll.sender.acknowledgePacket(seqNum, src);
-                        break;
+                case Packet.BEACON: {
+                    long suggestedTime = pkt.getTime() + LinkLayer.BEACON_UNPACK_TIME;
+                    long curTime = this.ll.time();
+                    if (this.ll.timing) {
+                        this.ll.log("Beacon unpack time: " + (this.ll.clock.time() - beaconUnpackTime), LinkLayer.TIMING);
                     }
+                    if (suggestedTime > curTime) {
+                        this.ll.log("Increasing timer offset", LinkLayer.TIMING);
+                        this.ll.clock_offset += suggestedTime - curTime;
+                    }
+                    break;
+                }
 
-                    case Packet.BEACON: {
-                        long suggestedTime = pkt.getTime() + LinkLayer.BEACON_UNPACK_TIME;
-                        long curTime = this.ll.time();
-                        if (this.ll.timing) {
-                            this.ll.log("Beacon unpack time: " + (System.currentTimeMillis() - beaconUnpackTime), LinkLayer.TIMING);
-                        }
-                        if (suggestedTime > curTime) {
-                            this.ll.log("Increasing timer offset", LinkLayer.TIMING);
-                            this.ll.clock_offset += suggestedTime - curTime;
-                        }
-                        break;
+                case Packet.BLOCK_ACK_REQ: {
+                    if (pkt.getDest() == this.ll.macAddr) {
+                        this.answerBlockAckRequest(pkt, txEndTime);
                     }
+                    break;
+                }
 
-                    // TODO rts/cts
+                case Packet.BLOCK_ACK: {
+                    if (pkt.getDest() == this.ll.macAddr) {
+                        this.ll.sender.acknowledgeBlock(pkt);
+                    }
+                    break;
+                }
 
-                    default: {
-                        this.ll.log("Incoming packet has invalid frame type", LinkLayer.DEBUG);
-                        break;
+                case Packet.RTS: {
+                    if (pkt.getDest() == this.ll.macAddr) {
+                        this.answerRts(pkt, txEndTime);
+                    } else {
+                        // only until the data would have started, in case the CTS never comes (NAV reset)
+                        long untilData = 2 * LinkLayer.REPLY_GAP + this.ll.rf.airtime(Packet.RESERVATION_SIZE);
+                        this.ll.reserve(Math.min(pkt.getDuration(), untilData));
                     }
+                    break;
+                }
+
+                case Packet.CTS: {
+                    if (pkt.getDest() == this.ll.macAddr) {
+                        this.ll.sender.clearedToSend(pkt.getSource());
+                    } else {
+                        this.ll.reserve(pkt.getDuration());
+                    }
+                    break;
+                }
+
+                default: {
+                    this.ll.log("Incoming packet has invalid frame type", LinkLayer.DEBUG);
+                    break;
+                }
+            }
+        } else {
+            this.ll.log("Incoming packet had invalid CRC", LinkLayer.DEBUG);
+        }
+    }
+
+    /**
+     * Run the timers of the reorder buffers
+     *
+     * @return the clock time the next of them runs out, or
+     *         {@code Long.MAX_VALUE} if none is running
+     */
+    private long expireStale() {
+        long expiry = Long.MAX_VALUE;
+        // don't let a frame the sender gave up on hold back the rest forever
+        for (Neighbour neighbour : this.neighbours) {
+            if (neighbour.reorder != null) {
+                expiry = Math.min(expiry, neighbour.reorder.flushStalled());
+            }
+        }
+        return expiry;
+    }
+
+    /**
+     * Acknowledge a data frame and queue the packets it carries, dropping
+     * duplicates and restoring sequence order if a window is in use.
+     * 
+     * @param pkt       the frame as received
+     * @param frames    the data packets it carries, in sequence order
+     * @param txEndTime time the frame finished arriving
+     */
+    private void acceptData(Packet pkt, List<Packet> frames, long txEndTime) {
+        short dest = pkt.getDest();
+        short source = pkt.getSource();
+        if (dest != this.ll.macAddr && dest != -1) {
+            return;
+        }
+        Neighbour neighbour = this.neighbours.computeIfAbsent(source, Neighbour::new);
+        Scoreboard scoreboard = dest == -1 ? null : neighbour.scoreboard;
+        int window = dest == -1 ? 1 : neighbour.window;
+        // the sender numbers broadcasts apart from the data it sends us
+        SeenWindow seen = dest == -1 ? neighbour.broadcasts : neighbour.unicasts;
+        if (this.refuse(neighbour, pkt)) {
+            return;
+        }
+        if (this.ll.recvOverflow == LinkLayer.OVERFLOW_WITHHOLD_ACK
+                && this.withhold(neighbour, seen, window, pkt, frames)) {
+            return;
+        }
+        if (scoreboard != null) {
+            // acknowledged later by a block ACK
+            for (Packet frame : frames) {
+                scoreboard.received[frame.getSeqNum()] = true;
+            }
+        }
+        // a resend is acknowledged now anyway, in case our answer to the
+        // source's setup was lost and it still waits for an ACK
+        if (scoreboard == null || pkt.isResend()) {
+            this.sendAck(neighbour, dest, pkt.getSeqNum(), txEndTime);
+        }
+
+        for (Packet frame : frames) {
+            if (window > 1) {
+                if (neighbour.reorder == null) {
+                    neighbour.reorder = new ReorderBuffer(neighbour.unicasts.next);
+                }
+                neighbour.reorder.accept(frame, window);
+                continue;
+            }
+
+            this.deliverUnlessDuplicate(frame, seen, pkt.isResend());
+        }
+    }
+
+    /**
+     * Leave a data frame unacknowledged, as if it never arrived, if the layer
+     * above has no room for it. The sender will try again; a broadcast is
+     * never sent again, so it is lost. Duplicates take no room, so they are
+     * always acknowledged: withholding their ACK would only make the sender
+     * retry until it gives up on a frame we already have.
+     *
+     * @return true if the frame was withheld
+     */
+    private boolean withhold(Neighbour neighbour, SeenWindow seen, int window, Packet pkt, List<Packet> frames) {
+        int count = 0, bytes = 0;
+        for (Packet frame : frames) {
+            int seqNum = frame.getSeqNum();
+            boolean duplicate = window > 1
+                    ? neighbour.reorder != null && neighbour.reorder.isDuplicate(seqNum, window)
+                    : seen.isDuplicate(seqNum, pkt.isResend());
+            if (!duplicate) {
+                count++;
+                bytes += frame.dataSize();
+            }
+        }
+        if (count == 0 || this.hasRoom(count, bytes)) {
+            return false;
+        }
+        if (pkt.getDest() == -1) {
+            this.dropped += frames.size();
+        } else {
+            this.withheld++;
+        }
+        if (this.ll.logs(LinkLayer.DEBUG)) {
+            this.ll.log("Not acknowledging #" + pkt.getSeqNum() + " from MAC " + pkt.getSource()
+                    + ": receive queue is full", LinkLayer.DEBUG);
+        }
+        return true;
+    }
+
+    /**
+     * Leave a fragment of a message we gave up on unacknowledged, so that its
+     * sender gives up on the message too instead of counting it delivered.
+     * First, give up on the source's incomplete messages that the frame comes
+     * after: a sender finishes with every fragment of a message before
+     * sending anything else, so the missing ones will never come. Messages
+     * the source's numbering has moved well past are forgotten, so their
+     * sequence numbers can be used again.
+     *
+     * @return true if the frame was refused
+     */
+    private boolean refuse(Neighbour neighbour, Packet pkt) {
+        List<Reassembly> messages = neighbour.reassemblies;
+        if (messages.isEmpty()) {
+            return false;
+        }
+        boolean broadcast = pkt.getDest() == -1;
+        int seqNum = pkt.getSeqNum();
+        int firstSeq = pkt.isFragment() ? (seqNum - pkt.getFragmentNumber()) & (Packet.SEQ_SPACE - 1) : -1;
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            Reassembly message = messages.get(i);
+            int ahead = (seqNum - message.firstSeq) & (Packet.SEQ_SPACE - 1);
+            if (message.broadcast != broadcast || message.firstSeq == firstSeq || ahead >= Packet.SEQ_SPACE / 2) {
+                continue;
+            }
+            if (ahead >= Packet.SEQ_SPACE / 4) {
+                if (message.parts != null) {
+                    this.reassembling--;
+                }
+                messages.remove(i);
+            } else if (message.parts != null) {
+                this.ll.log("Giving up on incomplete message #" + message.firstSeq + " from MAC " + neighbour.mac,
+                        LinkLayer.DEBUG);
+                this.abandon(message);
+            }
+        }
+        Reassembly message = firstSeq < 0 ? null : neighbour.reassembly(broadcast, firstSeq);
+        if (message == null || message.parts != null) {
+            return false;
+        }
+        this.ll.log("Refusing fragment #" + seqNum + " of abandoned message #" + firstSeq + " from MAC "
+                + neighbour.mac, LinkLayer.DEBUG);
+        return true;
+    }
+
+    /**
+     * Pass a data packet up unless the source's recent sequence numbers show
+     * it is a duplicate
+     * 
+     * @param resend true if the frame carrying it was flagged as a resend
+     */
+    private void deliverUnlessDuplicate(Packet frame, SeenWindow seen, boolean resend) {
+        int seqNum = frame.getSeqNum();
+        int skipped = (seqNum - seen.next) & (Packet.SEQ_SPACE - 1);
+        boolean fresh = seen.accept(seqNum, resend);
+        if (this.ll.logs(LinkLayer.DEBUG)) {
+            if (!fresh) {
+                this.ll.log("Dropping duplicate data #" + seqNum + " from MAC " + frame.getSource(), LinkLayer.DEBUG);
+            } else if (skipped != 0 && skipped < Packet.SEQ_SPACE / 2) {
+                this.ll.log("MAC " + frame.getSource() + " skipped ahead to #" + seqNum, LinkLayer.DEBUG);
+            }
+        }
+        if (fresh) {
+            this.deliver(frame);
+        }
+    }
+
+    /**
+     * Pass a data packet to the layer above
+     */
+    private void deliver(Packet pkt) {
+        if (pkt.isFragment() && (pkt = this.reassemble(pkt)) == null) {
+            return; // wait for the rest of the message
+        }
+        int size = pkt.dataSize();
+        int overflow = this.ll.recvOverflow;
+        // a withholding receiver checked for room before acknowledging, so
+        // frames released by a reorder buffer may overfill the queue a little
+        if (overflow != LinkLayer.OVERFLOW_WITHHOLD_ACK && !this.hasRoom(1, size)) {
+            if (overflow != LinkLayer.OVERFLOW_DROP_OLDEST) {
+                this.drop(pkt);
+                return;
+            }
+            Packet oldest;
+            while (!this.hasRoom(1, size) && (oldest = this.poll()) != null) {
+                this.drop(oldest);
+            }
+        }
+        // counted first, so the consumer never takes away more than was added
+        this.queuedBytes.addAndGet(size);
+        this.queue.add(pkt);
+        this.dataArrived.signal();
+    }
+
+    private void drop(Packet pkt) {
+        this.dropped++;
+        this.ll.log("Dropping incoming packet #" + pkt.getSeqNum() + " from MAC " + pkt.getSource()
+                + " because queue is full (" + this.dropped + " so far)", LinkLayer.ERROR);
+    }
+
+    /**
+     * Returns true if the given number of packets, holding the given number
+     * of data bytes, fit in the queue for the layer above. An empty queue
+     * takes anything, however large.
+     */
+    private boolean hasRoom(int count, int bytes) {
+        int queued = this.queue.size();
+        return queued == 0 || (queued + count <= this.ll.recvDepth
+                && this.queuedBytes.get() + bytes <= this.ll.recvBudget);
+    }
+
+    /**
+     * Add a fragment to its message. A source may have several messages under
+     * reassembly, in each of its sequence spaces, while fragments arrive late.
+     * 
+     * @return the whole message once every fragment is in, else null
+     */
+    private Packet reassemble(Packet fragment) {
+        short source = fragment.getSource();
+        boolean broadcast = fragment.getDest() == -1;
+        int fragNum = fragment.getFragmentNumber();
+        int firstSeq = (fragment.getSeqNum() - fragNum) & (Packet.SEQ_SPACE - 1);
+        Neighbour neighbour = this.neighbours.computeIfAbsent(source, Neighbour::new);
+        Reassembly message = neighbour.reassembly(broadcast, firstSeq);
+        if (message == null) {
+            if (this.reassembling >= MAX_REASSEMBLIES) {
+                this.evictStalestReassembly();
+            }
+            message = new Reassembly(broadcast, firstSeq);
+            neighbour.reassemblies.add(message);
+            this.reassembling++;
+        } else if (message.parts == null) {
+            return null; // given up on; its missing fragments are refused, so the sender fails it
+        }
+        message.add(fragment, this.ll.clock.time());
+        if (!message.isComplete()) {
+            return null;
+        }
+        neighbour.reassemblies.remove(message);
+        this.reassembling--;
+        Packet whole = message.join();
+        if (!fragment.isCompressed()) {
+            return whole;
+        }
+        byte[] data = Compression.decompress(whole.extractData(), Packet.MAX_MESSAGE_SIZE);
+        if (data == null) {
+            this.ll.log("Dropping message #" + firstSeq + " from MAC " + source + " that failed to decompress", LinkLayer.ERROR);
+            return null;
+        }
+        return new Packet(Packet.DATA, firstSeq, fragment.getDest(), source, data, data.length);
+    }
+
+    /**
+     * Make room in the reassembly table by giving up on the message heard from least recently
+     */
+    private void evictStalestReassembly() {
+        Neighbour source = null;
+        Reassembly stalest = null;
+        for (Neighbour neighbour : this.neighbours) {
+            for (Reassembly message : neighbour.reassemblies) {
+                if (message.parts != null && (stalest == null || message.lastHeard < stalest.lastHeard)) {
+                    source = neighbour;
+                    stalest = message;
                 }
-            } else {
-                this.ll.log("Incoming packet had invalid CRC", LinkLayer.DEBUG);
             }
         }
+        this.ll.log("Reassembly table full, giving up on message #" + stalest.firstSeq + " from MAC " + source.mac,
+                LinkLayer.DEBUG);
+        this.abandon(stalest);
     }
 
     /**
-     * Create and transmit an ACK packet to the given
+     * Give up on a partly received message. It is kept, without its
+     * fragments, so that the rest of them are refused.
+     */
+    private void abandon(Reassembly message) {
+        message.parts = null;
+        this.reassembling--;
+    }
+
+    /**
+     * Acknowledge a data frame sent to us (not a broadcast). Each source has
+     * an ACK built on first contact, so only its sequence number and CRC are
+     * rewritten per frame.
      * 
-     * @param pkt
-     * @param txEndTime
+     * @param txEndTime time the frame finished arriving
      */
-    private void sendAck(short source, short dest, short seqNum, long txEndTime) {
+    private void sendAck(Neighbour neighbour, short dest, short seqNum, long txEndTime) {
         if (dest == this.ll.macAddr) {
-            // send ACK
-            Packet ack = new Packet(Packet.ACK, seqNum, source, this.ll.macAddr, null, 0);
-            this.ll.log("Sending ACK: " + ack, LinkLayer.DEBUG);
-            try {
-                this.ll.waitUntil(txEndTime + RF.aSIFSTime);
-                this.ll.rf.transmit(ack.asBytes());
-            } catch (InterruptedException e) {
-                this.ll.log("Receiver interrupted while waiting SIFS", LinkLayer.ERROR);
+            if (neighbour.ack == null) {
+                neighbour.ack = new Packet(0).encode(Packet.ACK, 0, neighbour.mac, this.ll.macAddr, null, 0, 0);
+            }
+            neighbour.ack.setSeqNum(seqNum);
+            this.respond(neighbour.ack, txEndTime);
+        }
+    }
+
+    /**
+     * Answer a block ACK request. A request carrying a window size sets up an
+     * agreement: the source may send that many frames ahead of one we are
+     * missing, acknowledged by block ACKs if it asks for them and we allow
+     * them, else one by one. Anything else is answered with the bitmap of
+     * frames received from its starting sequence number.
+     * 
+     * @param bar       the request
+     * @param txEndTime time the request finished arriving
+     */
+    private void answerBlockAckRequest(Packet bar, long txEndTime) {
+        short source = bar.getSource();
+        int start = bar.getSeqNum();
+        Neighbour neighbour = this.neighbours.computeIfAbsent(source, Neighbour::new);
+        Scoreboard scoreboard = neighbour.scoreboard;
+
+        if (bar.size() > Packet.MIN_PACKET_SIZE) {
+            ByteBuffer request = ByteBuffer.wrap(bar.extractData());
+            int window = Math.max(1, Math.min(request.getShort(), MAX_WINDOW));
+            boolean blockAcks = request.hasRemaining() && request.get() != 0 && this.ll.blockAck;
+            if (!blockAcks) {
+                neighbour.scoreboard = null;
+            } else if (scoreboard == null) {
+                neighbour.scoreboard = new Scoreboard(start);
+            }
+            neighbour.window = window;
+            this.ll.log("Agreed to a window of " + window + (blockAcks ? " with" : " without")
+                    + " block ACKs from MAC " + source, LinkLayer.DEBUG);
+            byte[] setup = ByteBuffer.allocate(Long.BYTES + 3).putLong(0).putShort((short) window)
+                    .put((byte) (blockAcks ? 1 : 0)).array();
+            this.respond(new Packet(Packet.BLOCK_ACK, start, source, this.ll.macAddr, setup, setup.length), txEndTime);
+            return;
+        }
+
+        if (scoreboard == null) {
+            this.ll.log("Ignoring block ACK request without an agreement", LinkLayer.DEBUG);
+            return;
+        }
+        // forget frames before the new start so the sequence space can wrap
+        int forward = (start - scoreboard.start) & (Packet.SEQ_SPACE - 1);
+        if (forward < Packet.SEQ_SPACE / 2) {
+            for (int i = 0; i < forward; i++) {
+                scoreboard.received[(scoreboard.start + i) & (Packet.SEQ_SPACE - 1)] = false;
+            }
+            scoreboard.start = start;
+        }
+        long bitmap = 0;
+        for (int i = 0; i < Packet.BLOCK_ACK_WINDOW; i++) {
+            if (scoreboard.received[(start + i) & (Packet.SEQ_SPACE - 1)]) {
+                bitmap |= 1L << i;
+            }
+        }
+        this.respond(this.blockAck.encodeBlockAck(source, this.ll.macAddr, start, bitmap), txEndTime);
+    }
+
+    /**
+     * Answer an RTS with a CTS that reserves the channel for the rest of the
+     * exchange, unless another exchange we overheard has reserved it
+     * 
+     * @param rts       the request
+     * @param txEndTime time the request finished arriving
+     */
+    private void answerRts(Packet rts, long txEndTime) {
+        short source = rts.getSource();
+        if (this.ll.reserved()) {
+            this.ll.log("Not answering RTS from MAC " + source + " while the channel is reserved", LinkLayer.DEBUG);
+            return;
+        }
+        long duration = rts.getDuration() - LinkLayer.REPLY_GAP - this.ll.rf.airtime(Packet.RESERVATION_SIZE);
+        this.respond(this.cts.encodeReservation(Packet.CTS, rts.getSeqNum(), source, this.ll.macAddr,
+                (int) Math.max(0, duration)), txEndTime);
+    }
+
+    /**
+     * Have the {@link Responder} transmit a control frame one SIFS after the
+     * frame it answers
+     * 
+     * @param reply     the frame to send
+     * @param txEndTime time the frame being answered finished arriving
+     */
+    private void respond(Packet reply, long txEndTime) {
+        this.ll.responder.post(reply, txEndTime + RF.aSIFSTime);
+        if (this.ll.logs(LinkLayer.DEBUG)) {
+            this.ll.log("Sending " + reply, LinkLayer.DEBUG);
+        }
+    }
+
+    /**
+     * Everything we keep about one source
+     */
+    private static class Neighbour {
+        final short mac;
+        /** Data sent to us and broadcasts, while no window is in use */
+        final SeenWindow unicasts = new SeenWindow(), broadcasts = new SeenWindow();
+        /** Frames the source may send ahead of one we are missing, as agreed in its setup */
+        int window = 1;
+        /** Restores sequence order when the window is larger than 1 */
+        ReorderBuffer reorder;
+        /** Messages under reassembly, and those given up on that the source may still send fragments of */
+        final List<Reassembly> reassemblies = new ArrayList<>(1);
+        /** Set once the source has a block ACK agreement with us */
+        Scoreboard scoreboard;
+        /** Our ACK to the source, once we have sent one */
+        Packet ack;
+
+        Neighbour(short mac) {
+            this.mac = mac;
+        }
+
+        /**
+         * Returns the message in the given sequence space that starts at the
+         * given sequence number, or null if there is none
+         */
+        Reassembly reassembly(boolean broadcast, int firstSeq) {
+            for (int i = 0; i < this.reassemblies.size(); i++) {
+                Reassembly message = this.reassemblies.get(i);
+                if (message.broadcast == broadcast && message.firstSeq == firstSeq) {
+                    return message;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The most recent sequence numbers delivered from one source, which tell
+     * a resend of a frame we already have from one we never got. Comparisons
+     * are modulo the sequence space, so they hold across the wrap.
+     */
+    private static class SeenWindow {
+        /** Next sequence number expected */
+        int next;
+        /** Bit i is set if {@code next - 1 - i} was delivered; 0 before anything was */
+        long delivered;
+
+        /**
+         * Record a frame unless it is a duplicate. Numbers in the half of the
+         * sequence space ahead of {@code next} are new. Behind it, only a
+         * resend can be a duplicate: a frame sent for the first time means the
+         * source started numbering afresh. A resend is a duplicate if it was
+         * delivered, or if it is too old to tell.
+         * 
+         * @return true if the frame should be delivered
+         */
+        boolean accept(int seqNum, boolean resend) {
+            if (this.isDuplicate(seqNum, resend)) {
+                return false;
+            }
+            int ahead = (seqNum - this.next) & (Packet.SEQ_SPACE - 1);
+            if (ahead < Packet.SEQ_SPACE / 2 || !resend || this.delivered == 0) {
+                boolean forward = ahead < Packet.SEQ_SPACE / 2 && this.delivered != 0;
+                this.delivered = forward && ahead + 1 < Long.SIZE ? (this.delivered << (ahead + 1)) | 1 : 1;
+                this.next = (seqNum + 1) & (Packet.SEQ_SPACE - 1);
+            } else {
+                this.delivered |= 1L << ((this.next - 1 - seqNum) & (Packet.SEQ_SPACE - 1)); // late, but never delivered
+            }
+            return true;
+        }
+
+        /**
+         * Returns true if {@link #accept} would drop the frame, without recording it
+         */
+        boolean isDuplicate(int seqNum, boolean resend) {
+            int ahead = (seqNum - this.next) & (Packet.SEQ_SPACE - 1);
+            if (ahead < Packet.SEQ_SPACE / 2 || !resend || this.delivered == 0) {
+                return false;
+            }
+            int behind = (this.next - 1 - seqNum) & (Packet.SEQ_SPACE - 1);
+            return behind >= Long.SIZE || (this.delivered & (1L << behind)) != 0;
+        }
+    }
+
+    /**
+     * Frames received from a source that has a block ACK agreement with us
+     */
+    private static class Scoreboard {
+        final boolean[] received = new boolean[Packet.SEQ_SPACE];
+        int start;
+
+        Scoreboard(int start) {
+            this.start = start;
+        }
+    }
+
+    /**
+     * The fragments of one message received so far
+     */
+    private static class Reassembly {
+        /** True for a broadcast message, numbered apart from the data sent to us */
+        final boolean broadcast;
+        final int firstSeq;
+        /**
+         * The fragments as received, or null once the message is given up on;
+         * their data is copied only once, by {@link #join()}
+         */
+        Packet[] parts = new Packet[Packet.MAX_FRAGMENTS];
+        int received;
+        /** Number of fragments in the message, or -1 until the last one is in */
+        int total = -1;
+        long lastHeard;
+
+        Reassembly(boolean broadcast, int firstSeq) {
+            this.broadcast = broadcast;
+            this.firstSeq = firstSeq;
+        }
+
+        void add(Packet fragment, long now) {
+            int fragNum = fragment.getFragmentNumber();
+            if (this.parts[fragNum] == null) {
+                this.parts[fragNum] = fragment;
+                this.received++;
+            }
+            if (!fragment.hasMoreFragments()) {
+                this.total = fragNum + 1;
+            }
+            this.lastHeard = now;
+        }
+
+        boolean isComplete() {
+            return this.received == this.total;
+        }
+
+        Packet join() {
+            return Packet.reassemble(this.firstSeq, this.parts, this.total);
+        }
+    }
+
+    /**
+     * Holds frames from one source that arrived ahead of a missing frame so
+     * they can be passed up in sequence order (selective repeat).
+     */
+    private class ReorderBuffer {
+        private final Packet[] frames = new Packet[Packet.SEQ_SPACE];
+        /** Sequence numbers passed over without ever being delivered */
+        private final boolean[] missed = new boolean[Packet.SEQ_SPACE];
+        private int next;
+        private int buffered;
+        private long stalledSince = -1;
+
+        ReorderBuffer(int next) {
+            this.next = next;
+        }
+
+        /**
+         * Buffer a newly arrived frame and release whatever is now in order
+         */
+        void accept(Packet pkt, int window) {
+            int seqNum = pkt.getSeqNum();
+            int ahead = (seqNum - this.next) & (Packet.SEQ_SPACE - 1);
+            if (ahead >= Packet.SEQ_SPACE - window && this.missed[seqNum]) {
+                // we gave up on it too early; late is better than never
+                Receiver.this.ll.log("Late data #" + seqNum, LinkLayer.DEBUG);
+                this.missed[seqNum] = false;
+                Receiver.this.deliver(pkt);
+                return;
+            }
+            if (ahead >= Packet.SEQ_SPACE - window || this.frames[seqNum] != null) {
+                Receiver.this.ll.log("Dropping duplicate data #" + seqNum, LinkLayer.DEBUG);
+                return;
+            }
+            if (ahead >= window) {
+                // the sender's window has moved past frames we never got
+                Receiver.this.ll.log("MAC " + pkt.getSource() + " skipped ahead to #" + seqNum, LinkLayer.DEBUG);
+                this.skipTo((seqNum - window + 1) & (Packet.SEQ_SPACE - 1));
+            }
+            this.frames[seqNum] = pkt;
+            this.buffered++;
+            this.release();
+        }
+
+        /**
+         * Returns true if {@link #accept} would drop the frame as one we already have
+         */
+        boolean isDuplicate(int seqNum, int window) {
+            int ahead = (seqNum - this.next) & (Packet.SEQ_SPACE - 1);
+            return ahead >= Packet.SEQ_SPACE - window ? !this.missed[seqNum] : this.frames[seqNum] != null;
+        }
+
+        /**
+         * Give up on the oldest missing frame if it has held the others back too long
+         *
+         * @return the clock time the hole now at the front will be given up
+         *         on, or {@code Long.MAX_VALUE} if there is none
+         */
+        long flushStalled() {
+            if (this.stalledSince >= 0 && Receiver.this.ll.clock.time() - this.stalledSince >= HOLE_TIMEOUT) {
+                Receiver.this.ll.log("Giving up on missing data #" + this.next, LinkLayer.DEBUG);
+                while (this.frames[this.next] == null) {
+                    this.missed[this.next] = true;
+                    this.next = (this.next + 1) & (Packet.SEQ_SPACE - 1);
+                }
+                this.release();
+            }
+            return this.stalledSince < 0 ? Long.MAX_VALUE : this.stalledSince + HOLE_TIMEOUT;
+        }
+
+        /**
+         * Release buffered frames, skipping any holes, until {@code next}
+         * reaches the given sequence number
+         */
+        private void skipTo(int seqNum) {
+            while (this.next != seqNum) {
+                this.missed[this.next] = this.frames[this.next] == null;
+                if (this.frames[this.next] != null) {
+                    Receiver.this.deliver(this.frames[this.next]);
+                    this.frames[this.next] = null;
+                    this.buffered--;
+                }
+                this.next = (this.next + 1) & (Packet.SEQ_SPACE - 1);
+            }
+        }
+
+        /**
+         * Release the run of in-order frames at the front of the buffer
+         */
+        private void release() {
+            boolean progress = false;
+            while (this.frames[this.next] != null) {
+                Receiver.this.deliver(this.frames[this.next]);
+                this.frames[this.next] = null;
+                this.missed[this.next] = false;
+                this.buffered--;
+                this.next = (this.next + 1) & (Packet.SEQ_SPACE - 1);
+                progress = true;
+            }
+            if (this.buffered == 0) {
+                this.stalledSince = -1;
+            } else if (progress || this.stalledSince < 0) {
+                this.stalledSince = Receiver.this.ll.clock.time();
             }
         }
     }
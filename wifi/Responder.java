@@ -0,0 +1,92 @@
+package wifi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends the control frames that answer incoming frames (ACKs, block ACKs and
+ * CTSs) one SIFS after the frame they answer ended. It is a step of its own,
+ * so the reply goes out on time however long the {@link Receiver} takes over
+ * the rest of the frame (delivery, reassembly, decompression), and the
+ * receiver goes back to the medium as soon as the reply is posted. Replies
+ * are copied into buffers of the responder's own, so the receiver may
+ * rewrite its reply templates while an earlier reply is still on the air.
+ */
+public class Responder implements Clock.Handler {
+    private final LinkLayer ll;
+    /** Raised when a reply is posted */
+    private final Clock.Signal posted;
+    /** A copy of the reply to send next and the local time to send it at; guarded by this */
+    private byte[] reply;
+    private long replyTime;
+    /** Buffers of replies sent or replaced, to copy the next ones into; guarded by this */
+    private final List<byte[]> spare = new ArrayList<>();
+
+    public Responder(LinkLayer ll) {
+        this.ll = ll;
+        this.posted = ll.clock.newSignal();
+    }
+
+    /**
+     * Send the given frame at the given local time. The frame is copied, so
+     * the caller may change it as soon as this returns. A reply still waiting
+     * to go out is replaced, since the frame it answers was followed by
+     * another before it could be sent.
+     */
+    public void post(Packet reply, long time) {
+        byte[] frame = reply.asBytes();
+        synchronized (this) {
+            byte[] copy = this.buffer(frame.length);
+            System.arraycopy(frame, 0, copy, 0, frame.length);
+            if (this.reply != null) {
+                this.spare.add(this.reply);
+            }
+            this.reply = copy;
+            this.replyTime = time;
+        }
+        this.posted.signal();
+    }
+
+    /**
+     * Returns a spare buffer of the given length, or a new one. There are at
+     * most two of each length in use, the reply waiting and the one on the
+     * air, so after the first few replies nothing is allocated. Caller must
+     * hold the lock.
+     */
+    private byte[] buffer(int length) {
+        for (int i = this.spare.size() - 1; i >= 0; i--) {
+            if (this.spare.get(i).length == length) {
+                return this.spare.remove(i);
+            }
+        }
+        return new byte[length];
+    }
+
+    @Override
+    public void step(Clock.Wait wait) {
+        byte[] reply;
+        long time;
+        synchronized (this) {
+            reply = this.reply;
+            time = this.replyTime;
+        }
+        if (reply == null) {
+            wait.on(this.posted, Long.MAX_VALUE);
+            return;
+        }
+        if (!this.ll.reached(time, wait)) {
+            return;
+        }
+        synchronized (this) {
+            if (this.reply != reply || this.replyTime != time) {
+                return; // replaced while we waited; come straight back for it
+            }
+            this.reply = null;
+        }
+        this.ll.rf.transmit(reply, wait);
+        synchronized (this) {
+            // the medium is done with the frame once transmit() returns
+            this.spare.add(reply);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package wifi;
+
+/**
+ * Smoothed round-trip time and variance of the ACKs from one destination,
+ * and the retransmit timeout derived from them (RFC 6298). The timeout
+ * starts at an initial value, follows {@code srtt + 4 * rttvar} once
+ * samples arrive, doubles for each time a frame has been resent, and always
+ * stays within its floor and ceiling.
+ */
+public class RttEstimator {
+    /** The smallest difference in the timeout worth having, in ms */
+    private static final long GRANULARITY = LinkLayer.BOUNDARY_SIZE;
+
+    private final long min, max;
+    /** Smoothed round-trip time and its mean deviation, -1 until the first sample */
+    private long srtt = -1, rttvar;
+    private long timeout;
+
+    /**
+     * @param initial the timeout to use until the first sample
+     * @param min     the floor of the timeout
+     * @param max     the ceiling of the timeout
+     */
+    public RttEstimator(long initial, long min, long max) {
+        this.min = min;
+        this.max = max;
+        this.timeout = Math.max(min, Math.min(initial, max));
+    }
+
+    /**
+     * Feed in a measured round trip. Only frames that were sent once may be
+     * measured, since an ACK for a resent frame could answer either copy.
+     */
+    public synchronized void sample(long rtt) {
+        if (this.srtt < 0) {
+            this.srtt = rtt;
+            this.rttvar = rtt / 2;
+        } else {
+            this.rttvar += (Math.abs(this.srtt - rtt) - this.rttvar) / 4;
+            this.srtt += (rtt - this.srtt) / 8;
+        }
+        this.timeout = Math.max(this.min, Math.min(this.srtt + Math.max(GRANULARITY, 4 * this.rttvar), this.max));
+    }
+
+    /**
+     * Returns the retransmit timeout in ms for a frame that has been resent
+     * the given number of times
+     */
+    public synchronized long timeout(int retries) {
+        return Math.min(this.timeout << Math.min(retries, 16), this.max);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "srtt " + this.srtt + " rttvar " + this.rttvar + " timeout " + this.timeout;
+    }
+}
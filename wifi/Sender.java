@@ -1,9 +1,13 @@
 package wifi;
 
-import java.util.HashMap;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import rf.RF;
 
@@ -11,7 +15,7 @@ import rf.RF;
  * This class contains methods for the sending thread of the {@link LinkLayer}. 
  * @author Tristan Gaeta
  */
-public class Sender implements Runnable {
+public class Sender implements Clock.Handler {
     /**
      * This is used to keep track of the current state of execution in the 802.11~
      * protocol. See the state diagram provided in the documentation directory.
@@ -20,207 +24,943 @@ public class Sender implements Runnable {
         AWAITING_DATA,
         AWAITING_IDLE,
         AWAITING_SLOT,
-        AWAITING_ACK
+        AWAITING_ACK,
+        /** Sent an RTS, waiting for the CTS and then one SIFS before the frame itself */
+        AWAITING_CTS,
+        /** On the air, for media that return before the frame has finished */
+        TRANSMITTING
     }
 
     // Final fields
+    /** Default number of messages (not fragments) that may wait for each destination */
     public static final int BUFFER_CAPACITY = 4;
+    /** Default bytes of packets that may wait across all destinations: one full queue of the largest messages */
+    public static final int QUEUE_BUDGET = BUFFER_CAPACITY
+            * (Packet.MAX_MESSAGE_SIZE + Packet.MAX_FRAGMENTS * (Packet.MIN_PACKET_SIZE + Packet.FLAGS_SIZE));
 
-    /** Inter-frame space used for data transmissions */
+    /** Default number of messages that may be handed over before someone has to move them onto their queues */
+    public static final int RING_CAPACITY = 64;
+
+    /** Unanswered RTSs after which a frame is given up on, like dot11ShortRetryLimit */
+    public static final int RTS_RETRY_LIMIT = 7;
+
+    /** Inter-frame space used for data transmissions at normal priority */
     private static final int DIFS = RF.aSIFSTime + 2 * RF.aSlotTime;
+    /** Bytes a destination may send per scheduling round; enough for any frame */
+    private static final int QUANTUM = RF.aMPDUMaximumLength;
     /** The link layer running this thread */
     private final LinkLayer ll;
-    /** The queue of data packets we have to send */
-    private final BlockingQueue<Packet> queue;
-    private final HashMap<Short, Short> seqNums;
+    /** Data packets we have to send by destination; its lock also guards the queues and scheduling state */
+    private final PeerTable<Destination> destinations;
+    /** Contention parameters and backlog of each priority, lowest first */
+    private final AccessCategory[] categories;
+    /**
+     * Messages accepted by {@code enqueue()}, moved onto their queues by
+     * whoever next holds the queue lock. Only replaced under that lock.
+     */
+    private volatile MpscRing<Message> submitted;
+    /** Bytes of packets waiting across all destinations, including those still in {@code submitted} */
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+    /** Threads in {@code enqueue()} waiting for room; room is only signaled while there are some */
+    private final AtomicInteger waiting = new AtomicInteger();
+    /** Raised when a message or its bytes leave the queues while someone is waiting */
+    private final Clock.Signal roomFreed;
+    /** Windowed transmission state by destination when using a window larger than 1 */
+    private final PeerTable<Peer> peers;
+    /** Raised when data is queued or an ACK arrives */
+    private final Clock.Signal dataArrived, ackArrived;
+    /** Reused for every beacon, block ACK request and RTS we send */
+    private final Packet beacon, blockAckRequest, rts;
 
     // Instance variables
     private State state;
     private Packet curPkt;
-    private int collisionWindow;
+    private Outstanding curFrame;
+    /** Messages {@code curPkt} carries, empty for beacons and block ACK requests */
+    private List<Message> curMessages = List.of();
+    /** Where {@code curPkt} came from, null for beacons and block ACK requests */
+    private DestQueue curQueue;
+    /** Contention parameters for {@code curPkt} */
+    private AccessCategory curCategory;
     private int retries;
     private int slotWaitCount;
     private boolean cautious;
-    private boolean acknowledged;
+    /** Set on a transition, until the new state has set up its waits */
+    private boolean entering = true;
+    /** Local time the current inter-frame space or slot ends, -1 before it starts */
+    private long target;
+    /** Clock time to stop waiting for data or for an ACK */
+    private long deadline;
+    private volatile boolean acknowledged;
+    /** True while the frame on the air is the RTS for {@code curPkt} */
+    private boolean reserving;
+    private volatile boolean cleared;
+    /** RTSs sent for {@code curPkt} that went unanswered */
+    private int rtsRetries;
     private long prevBeaconTime;
 
     // timing
     private long beaconTimer;
+    /** End of the last transmission, when the wait for its ACK starts */
     private long ackTimer;
 
     public Sender(LinkLayer ll) {
         this.ll = ll;
-        // we are using a linked blocking queue here because it uses 
-        // different locks for insertion and removal.
-        this.queue = new LinkedBlockingQueue<>(BUFFER_CAPACITY);
-        this.seqNums = new HashMap<>();
+        this.destinations = new PeerTable<>();
+        this.submitted = new MpscRing<>(RING_CAPACITY);
+        this.categories = new AccessCategory[] {
+            // bulk: two more slots before contending, and a wider window
+            new AccessCategory(DIFS + 2 * RF.aSlotTime, 2 * RF.aCWmin + 1, RF.aCWmax),
+            new AccessCategory(DIFS, RF.aCWmin, RF.aCWmax),
+            // control: one slot after SIFS, and a window of a few slots at most
+            new AccessCategory(RF.aSIFSTime + RF.aSlotTime, 1, RF.aCWmin),
+        };
+        this.curCategory = this.categories[LinkLayer.PRIORITY_NORMAL];
+        this.peers = new PeerTable<>();
+        this.dataArrived = ll.clock.newSignal();
+        this.ackArrived = ll.clock.newSignal();
+        this.roomFreed = ll.clock.newSignal();
+        this.beacon = new Packet(Long.BYTES);
+        this.blockAckRequest = new Packet(0);
+        this.rts = new Packet(Integer.BYTES);
         this.state = State.AWAITING_DATA;
-        this.collisionWindow = RF.aCWmin;
     }
 
     /**
-     * This method will run indefinitely. It will wait for data to be enqueued (using the 
-     * {@code enqueue()} method) then follow the 802.11~ protocol to send the data over the
-     * RF layer of the parent {@link LinkLayer}.
+     * Follow the 802.11~ protocol: wait for data to be enqueued (using the
+     * {@code enqueue()} method), contend for the channel, send it over the RF
+     * layer of the parent {@link LinkLayer} and wait for its ACK. Returns
+     * whenever the protocol has to wait for something.
      */
     @Override
-    public void run() {
-        while (!Thread.interrupted()) {
-            // transition has occurred
-            this.ll.log("Entered state: " + this.state, LinkLayer.STATE);
-            try {
-                switch (this.state) {
-                    case AWAITING_DATA: {
-                        // get next packet to send (data or beacon)
-                        this.awaitData();
+    public void step(Clock.Wait wait) {
+        while (true) {
+            if (this.entering) {
+                // transition has occurred
+                this.entering = false;
+                this.ll.log("Entered state: " + this.state, LinkLayer.STATE);
+                this.enter();
+            }
+            switch (this.state) {
+                case AWAITING_DATA: {
+                    // get next packet to send (data or beacon)
+                    if (!this.awaitData(wait)) {
+                        return;
+                    }
 
-                        /* transition */
-                        if (this.ll.rf.inUse()) { // medium busy
-                            // transition to idle wait
-                            this.cautious = true;
-                            this.slotWaitCount = this.pickSlotWait();
-                            this.state = State.AWAITING_IDLE;
-                        } else { // medium idle
-                            // transition to Slot wait
-                            this.ll.waitUntil(this.ll.nextBoundary() + DIFS);
-                            this.cautious = false;
-                            this.slotWaitCount = 0;
-                            this.state = State.AWAITING_SLOT;
-                        }
-                        break;
+                    /* transition */
+                    if (this.retries > 0 || (this.curFrame != null && this.curFrame.retries > 0)) {
+                        // retransmission timer expired, back off
+                        this.cautious = true;
+                        this.slotWaitCount = this.pickSlotWait();
+                    } else if (this.ll.busy()) { // medium busy
+                        this.cautious = true;
+                        this.slotWaitCount = this.pickSlotWait();
+                    } else { // medium idle, so only the inter-frame space to wait
+                        this.cautious = false;
+                        this.slotWaitCount = 0;
+                    }
+                    this.transition(State.AWAITING_IDLE);
+                    break;
+                }
+                case AWAITING_ACK: {
+                    if (!this.awaitAck(wait)) {
+                        return;
                     }
-                    case AWAITING_ACK: {
-                        this.awaitAck();
 
-                        /* transition */
-                        if (this.acknowledged || this.retries == RF.dot11RetryLimit) {
-                            if (this.retries == RF.dot11RetryLimit) {
-                                this.ll.log("Dropping packet after max retries: " + this.curPkt, LinkLayer.ERROR);
-                                this.ll.status = LinkLayer.TX_FAILED;
+                    /* transition */
+                    this.finishExchange();
+                    this.transition(State.AWAITING_DATA);
+                    break;
+                }
+                case AWAITING_CTS: {
+                    if (this.target < 0) {
+                        if (!this.cleared && this.ll.clock.time() < this.deadline) {
+                            // receiving thread will wake us if the CTS arrives
+                            wait.on(this.ackArrived, this.deadline);
+                            return;
+                        }
+                        if (!this.cleared) {
+                            /* transition */
+                            this.ll.log("No CTS for " + this.curPkt, LinkLayer.DEBUG);
+                            this.reserving = false;
+                            if (++this.rtsRetries < RTS_RETRY_LIMIT) {
+                                // losing an RTS is cheap, so try again at once from a wider window
+                                int window = this.curCategory.backOff();
+                                this.ll.log("Increased collision window to: " + window, LinkLayer.DEBUG);
+                                this.cautious = true;
+                                this.slotWaitCount = this.pickSlotWait();
+                                this.transition(State.AWAITING_IDLE);
                             } else {
-                                this.ll.status = LinkLayer.TX_DELIVERED;
+                                this.unreserved();
+                                this.transition(State.AWAITING_DATA);
                             }
-                            // transition to data wait
-                            this.collisionWindow = RF.aCWmin;
-                            this.retries = 0;
-                            this.state = State.AWAITING_DATA;
-                        } else { // Timeout occurred
-                            this.ll.status = LinkLayer.TX_FAILED;
-                            // transition to idle wait
-                            if (this.retries++ == 0) {
-                                this.curPkt.flagAsResend();
-                            }
-                            this.collisionWindow = Math.min(2 * this.collisionWindow, RF.aCWmax); // backoff
-                            this.ll.log("Increased collision window to: " + this.collisionWindow, LinkLayer.DEBUG);
-                            this.slotWaitCount = this.pickSlotWait();
-                            this.state = State.AWAITING_IDLE;
+                            break;
                         }
-                        break;
+                        // the channel is ours, so no contending: just the SIFS a reply waits
+                        this.target = this.ll.nextBoundary() + RF.aSIFSTime;
+                    }
+                    if (!this.ll.reached(this.target, wait)) {
+                        return;
+                    }
+                    if (this.ll.logs(LinkLayer.DEBUG)) {
+                        this.ll.log("Transmitting packet: " + this.curPkt, LinkLayer.DEBUG);
                     }
-                    case AWAITING_IDLE: {
-                        while (this.ll.rf.inUse()) {
-                            Thread.sleep(LinkLayer.BOUNDARY_SIZE);
+                    this.reserving = false;
+                    this.ll.rf.transmit(this.curPkt.asBytes(), wait);
+                    this.transition(State.TRANSMITTING);
+                    return;
+                }
+                case AWAITING_IDLE: {
+                    if (this.target < 0) {
+                        if (!this.ll.idle(wait)) {
+                            return;
                         }
-                        // aligned boundary wait
-                        this.ll.waitUntil(this.ll.nextBoundary() + DIFS);
-                        this.state = State.AWAITING_SLOT;
-                        break;
+                        // aligned boundary wait, which the channel has to stay idle for
+                        this.target = this.ll.nextBoundary() + this.curCategory.aifs;
+                    }
+                    // a station that found the channel idle only checks it again at the end
+                    if (!(this.cautious ? this.ll.reachedOrBusy(this.target, wait) : this.ll.reached(this.target, wait))) {
+                        return;
+                    }
+
+                    /* transition */
+                    if (this.ll.busy()) {
+                        if (!this.cautious) {
+                            this.cautious = true;
+                            this.slotWaitCount = this.pickSlotWait();
+                        }
+                        this.transition(State.AWAITING_IDLE);
+                    } else {
+                        this.transition(State.AWAITING_SLOT);
                     }
-                    case AWAITING_SLOT: {
+                    break;
+                }
+                case AWAITING_SLOT: {
+                    if (this.target < 0) {
                         /* transition */
-                        if (this.ll.rf.inUse()) {
+                        if (this.ll.busy()) {
                             if (!this.cautious) {
                                 this.cautious = true;
                                 this.slotWaitCount = this.pickSlotWait();
                             }
-                            this.state = State.AWAITING_IDLE;
-                        } else {
-                            if (this.slotWaitCount == 0) {
-                                // clear to send
-                                this.ll.log("Transmitting packet: " + this.curPkt, LinkLayer.DEBUG);
-                                this.ll.rf.transmit(this.curPkt.asBytes());
-
-                                if (this.ll.timing) {
-                                    long curTime = System.currentTimeMillis();
-                                    this.ackTimer = curTime; // start ack timer
-                                    if (this.beaconTimer != -1) {
-                                        // time between when we noticed we need to send a beacon and the end of tx
-                                        this.ll.log("Beacon time: " + (curTime - this.beaconTimer), LinkLayer.TIMING);
-                                    }
-                                }
-
-                                /* transition */
-                                if (this.curPkt.getDest() == -1) {
-                                    // don't expect ack on broadcast
-                                    this.state = State.AWAITING_DATA;
-                                } else {
-                                    this.state = State.AWAITING_ACK;
-                                }
-                            } else {
-                                // perform 1 slot wait
-                                this.ll.waitUntil(this.ll.nextBoundary() + RF.aSlotTime);
-                                if (!this.ll.rf.inUse()) {
-                                    this.slotWaitCount--;
-                                }
+                            this.transition(State.AWAITING_IDLE);
+                            break;
+                        }
+                        if (this.curFrame != null && this.curFrame.acked) {
+                            // a late ACK arrived for the frame we were about to resend
+                            this.transition(State.AWAITING_DATA);
+                            break;
+                        }
+                        if (this.slotWaitCount == 0) {
+                            // clear to send, though a large frame only reserves the channel for now
+                            Packet frame = this.curPkt;
+                            this.reserving = this.needsReservation();
+                            if (this.reserving) {
+                                frame = this.rts.encodeReservation(Packet.RTS, this.curPkt.getSeqNum(),
+                                        this.curPkt.getDest(), this.ll.macAddr, this.reservation());
+                                this.cleared = false;
                             }
+                            if (this.ll.logs(LinkLayer.DEBUG)) {
+                                this.ll.log("Transmitting packet: " + frame, LinkLayer.DEBUG);
+                            }
+                            this.acknowledged = false;
+                            this.ll.rf.transmit(frame.asBytes(), wait);
+                            this.transition(State.TRANSMITTING);
+                            return;
                         }
-                        break;
+                        // perform 1 slot wait, which only counts if the channel stays idle
+                        this.target = this.ll.nextBoundary() + RF.aSlotTime;
                     }
-                    default: {
-                        this.ll.log("Entered an invalid state. Terminating sending thread.", LinkLayer.ERROR);
+                    if (!this.ll.reachedOrBusy(this.target, wait)) {
                         return;
                     }
+                    if (!this.ll.busy()) {
+                        this.slotWaitCount--;
+                    }
+                    this.transition(State.AWAITING_SLOT);
+                    break;
+                }
+                case TRANSMITTING: {
+                    this.ackTimer = this.ll.clock.time(); // start ack timer
+
+                    if (this.ll.timing && this.beaconTimer != -1) {
+                        // time between when we noticed we need to send a beacon and the end of tx
+                        this.ll.log("Beacon time: " + (this.ackTimer - this.beaconTimer), LinkLayer.TIMING);
+                    }
+
+                    /* transition */
+                    if (this.reserving) {
+                        this.transition(State.AWAITING_CTS);
+                    } else if (this.curPkt.getDest() == -1) {
+                        // don't expect ack on broadcast
+                        this.settle(this.curMessages, true, 0);
+                        this.transition(State.AWAITING_DATA);
+                    } else if (this.curPkt.getFrameType() == Packet.BLOCK_ACK_REQ) {
+                        this.requestedBlockAck(this.curPkt);
+                        this.transition(State.AWAITING_DATA);
+                    } else if (this.curFrame != null) {
+                        // windowed: start the retransmit timer and move on
+                        this.sentWindowed(this.curFrame);
+                        this.transition(State.AWAITING_DATA);
+                    } else {
+                        this.transition(State.AWAITING_ACK);
+                    }
+                    break;
+                }
+                default: {
+                    throw new IllegalStateException("Sender entered an invalid state: " + this.state);
                 }
-            } catch (InterruptedException e) {
-                this.ll.log("interrupted while waiting in " + this.state + " state.", LinkLayer.ERROR);
             }
         }
     }
 
+    private void transition(State next) {
+        this.state = next;
+        this.entering = true;
+    }
+
     /**
-     * Wait for the next data or beacon packet to send
+     * Set up the waits of the state just entered
      */
-    public void awaitData() {
-        this.curPkt = null;
-        long timeToNextBeacon = this.ll.beaconFrequency - (this.ll.time() - this.prevBeaconTime);
-
-        // block for incoming data on the queue if we have time
-        if (timeToNextBeacon > 0) {
-            try {
-                this.curPkt = this.queue.poll(timeToNextBeacon, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                this.ll.log("Sender interrupted while blocking for incoming data.", LinkLayer.ERROR);
+    private void enter() {
+        this.target = -1;
+        switch (this.state) {
+            case AWAITING_DATA: {
+                this.curPkt = null;
+                this.curFrame = null;
+                this.curMessages = List.of();
+                this.curQueue = null;
+                this.curCategory = this.categories[LinkLayer.PRIORITY_NORMAL];
+                this.retries = 0;
+                this.rtsRetries = 0;
+                long timeToNextBeacon = this.ll.beaconFrequency - (this.ll.time() - this.prevBeaconTime);
+                long now = this.ll.clock.time();
+                // look for data only if we have time before the beacon; with beacons off, that is forever
+                this.deadline = timeToNextBeacon <= 0 ? Long.MIN_VALUE
+                        : timeToNextBeacon >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeToNextBeacon;
+                break;
+            }
+            case AWAITING_ACK: {
+                this.deadline = this.ackTimer + this.curQueue.destination.rtt.timeout(this.retries);
+                break;
+            }
+            case AWAITING_CTS: {
+                // a CTS takes a little longer to send than the ACKs the round trips were measured on
+                long longer = this.ll.rf.airtime(Packet.RESERVATION_SIZE) - this.ll.rf.airtime(Packet.MIN_PACKET_SIZE);
+                this.deadline = this.ackTimer + this.curQueue.destination.rtt.timeout(0) + longer;
+                break;
             }
+            default: {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Look for the next data or beacon packet to send, or a windowed frame
+     * whose retransmit timer has expired
+     * 
+     * @return true once {@code curPkt} is set, false after setting
+     *         {@code wait}
+     */
+    private boolean awaitData(Clock.Wait wait) {
+        if (this.deadline != Long.MIN_VALUE && !this.nextFrame() && this.ll.clock.time() < this.deadline) {
+            // woken by enqueue(), an ACK or a retransmit timer
+            wait.on(this.dataArrived, Math.min(this.deadline, this.nextTimeout()));
+            return false;
         }
         // record time if we're sending beacon
         if (this.ll.timing) {
-            this.beaconTimer = (this.curPkt == null) ? System.currentTimeMillis() : -1;
+            this.beaconTimer = (this.curPkt == null) ? this.ll.clock.time() : -1;
         }
         if (this.curPkt == null) {
             // time to send beacon
             long localTime = this.ll.time();
             this.prevBeaconTime = localTime;
-            this.curPkt = new Packet(this.ll.macAddr, localTime + LinkLayer.BEACON_DELIVERY_TIME);
+            this.curPkt = this.beacon.encodeBeacon(this.ll.macAddr, localTime + LinkLayer.BEACON_DELIVERY_TIME);
         }
+        return true;
     }
 
     /**
-     * Wait for a valid ack or timeout
+     * Pick the next frame to send. A block ACK request for a finished burst
+     * comes first. Otherwise {@link #schedule(int)} picks a destination queue,
+     * which resends a frame whose retransmit timer has expired before sending
+     * its head.
+     * 
+     * @return true if {@code curPkt} was set
      */
-    public void awaitAck() {
-        this.acknowledged = false;
-        try {
-            // receiving thread will wake us if ack arrives
-            synchronized (this) {
-                this.wait(LinkLayer.ACK_TIMEOUT);
+    private boolean nextFrame() {
+        long now = this.ll.clock.time();
+        synchronized (this.peers) {
+            synchronized (this.destinations) {
+                this.drainSubmitted();
+                int windowSize = this.ll.arqWindow;
+
+                for (Peer peer : this.peers) {
+                    if (peer.agreement == Agreement.REQUESTED && peer.setupDeadline <= now) {
+                        peer.setupDeadline = Long.MAX_VALUE;
+                        if (peer.setupRetries++ < RF.dot11RetryLimit) {
+                            peer.agreement = null; // offer again
+                        } else {
+                            peer.agreement = Agreement.REFUSED;
+                            this.ll.log("Window setup went unanswered, sending one frame at a time", LinkLayer.DEBUG);
+                        }
+                    }
+                    // the first frame of each queue due for a resend waits for that queue's turn
+                    for (DestQueue queue : peer.destination.queues) {
+                        queue.due = null;
+                    }
+                    List<Message> failed = null;
+                    Iterator<Outstanding> it = peer.window.iterator();
+                    while (it.hasNext()) {
+                        Outstanding frame = it.next();
+                        if (frame.deadline > now) {
+                            continue;
+                        }
+                        if (frame.retries == RF.dot11RetryLimit || frame.unreserved) {
+                            it.remove();
+                            String cause = frame.unreserved ? "unanswered RTSs" : "max retries";
+                            this.ll.log("Dropping packet after " + cause + ": " + frame.pkt, LinkLayer.ERROR);
+                            this.ll.status = LinkLayer.TX_FAILED;
+                            this.settle(frame.messages, false, frame.retries);
+                            if (failed == null) {
+                                failed = new ArrayList<>(1);
+                            }
+                            failed.addAll(frame.messages);
+                            continue;
+                        }
+                        if (frame.queue.due == null) {
+                            frame.queue.due = frame;
+                            this.addToBacklog(frame.queue);
+                        }
+                    }
+                    if (failed != null) {
+                        this.discardRest(failed);
+                    }
+                }
+
+                // ask for one block ACK once a burst to a destination is over
+                for (Peer peer : this.peers) {
+                    short dest = peer.destination.dest;
+                    if (peer.agreement != Agreement.AGREED || peer.hasRequestedBlockAck() || !peer.hasUnrequested()) {
+                        continue;
+                    }
+                    // the next message also waits for a fragmented one to be acknowledged
+                    boolean held = peer.hasFragments() && peer.destination.holder() == null;
+                    if (!peer.destination.hasPackets() || held || peer.inFlight() >= peer.limit(windowSize)) {
+                        int start = peer.window.get(0).pkt.getSeqNum();
+                        this.curPkt = this.blockAckRequest.encode(Packet.BLOCK_ACK_REQ, start, dest, this.ll.macAddr, null, 0, 0);
+                        return true;
+                    }
+                }
+
+                DestQueue queue = this.schedule(windowSize);
+                if (queue == null) {
+                    return false; // nothing queued, or waiting for ACKs to open the windows
+                }
+                this.curQueue = queue;
+                this.curCategory = this.categories[queue.priority];
+                if (queue.due != null) {
+                    Outstanding frame = queue.due;
+                    queue.due = null;
+                    if (frame.retries++ == 0) {
+                        frame.pkt.flagAsResend();
+                    }
+                    int window = this.curCategory.backOff();
+                    this.ll.log("Increased collision window to: " + window, LinkLayer.DEBUG);
+                    frame.deadline = Long.MAX_VALUE; // no timer until it is back on the air
+                    frame.covered = false;
+                    queue.deficit -= frame.pkt.size();
+                    this.endTurn(queue);
+                    this.curFrame = frame;
+                    this.curPkt = frame.pkt;
+                    this.curMessages = frame.messages;
+                    return true;
+                }
+                if (queue.retry != null) {
+                    // a stop-and-wait frame that went unanswered
+                    this.curPkt = queue.retry;
+                    this.retries = queue.retries;
+                    this.curMessages = queue.retryMessages;
+                    queue.retry = null;
+                    queue.retryMessages = null;
+                    queue.deficit -= this.curPkt.size();
+                    return true;
+                }
+                short dest = queue.destination.dest;
+                if (windowSize > 1 && dest != -1) {
+                    Peer peer = this.peers.computeIfAbsent(dest, k -> new Peer(queue.destination));
+                    if (peer.agreement == null) {
+                        // agree on the window, and offer block ACKs, before the first burst
+                        peer.agreement = Agreement.REQUESTED;
+                        int window = this.ll.blockAck ? Math.min(windowSize, Packet.BLOCK_ACK_WINDOW) : windowSize;
+                        byte[] setup = ByteBuffer.allocate(3).putShort((short) window)
+                                .put((byte) (this.ll.blockAck ? 1 : 0)).array();
+                        int seqNum = queue.destination.seqNum;
+                        this.curPkt = new Packet(Packet.BLOCK_ACK_REQ, seqNum, dest, this.ll.macAddr, setup, setup.length);
+                        this.curQueue = null;
+                        this.curCategory = this.categories[LinkLayer.PRIORITY_NORMAL];
+                        return true;
+                    }
+                    this.curMessages = new ArrayList<>(1);
+                    this.curPkt = this.poll(queue, peer.limit(windowSize) - peer.inFlight(), this.curMessages);
+                    this.curFrame = new Outstanding(this.curPkt, queue, this.curMessages);
+                    peer.window.add(this.curFrame);
+                    return true;
+                }
+                this.curMessages = new ArrayList<>(1);
+                this.curPkt = this.poll(queue, Integer.MAX_VALUE, this.curMessages);
+                return true;
             }
-        } catch (InterruptedException e) {
-            this.ll.log("Sender interrupted while waiting for ack", LinkLayer.ERROR);
         }
+    }
 
-        if (this.acknowledged && this.ll.timing) {
+    /**
+     * Pick the queue to send from next: the highest priority that has a
+     * queue ready to send, and within it the next queue in its round
+     * 
+     * @param windowSize the ARQ window in use
+     * @return the queue, or null if none may send
+     */
+    private DestQueue schedule(int windowSize) {
+        for (int priority = this.categories.length - 1; priority >= 0; priority--) {
+            DestQueue queue = this.schedule(this.categories[priority], windowSize);
+            if (queue != null) {
+                return queue;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Deficit round-robin over the destinations with something to send at
+     * one priority. Each destination gets {@value #QUANTUM} bytes of credit
+     * per round and sends until its head frame no longer fits, so one busy
+     * or unreachable destination cannot hold up the others. Destinations
+     * whose ARQ window is full sit their turn out without earning credit.
+     * 
+     * @param windowSize the ARQ window in use
+     * @return the queue to send from next, or null if none may send
+     */
+    private DestQueue schedule(AccessCategory category, int windowSize) {
+        ArrayDeque<DestQueue> backlog = category.backlog;
+        boolean waiting = true;
+        while (waiting) {
+            waiting = false;
+            // at most the head is part way through its turn, so one extra visit covers everyone
+            for (int n = backlog.size() + 1; n > 0 && !backlog.isEmpty(); n--) {
+                DestQueue queue = backlog.peekFirst();
+                if (queue.isEmpty()) {
+                    backlog.pollFirst();
+                    queue.backlogged = false;
+                    queue.inTurn = false;
+                    queue.deficit = 0;
+                    continue;
+                }
+                if (this.isReady(queue, windowSize)) {
+                    if (!queue.inTurn) {
+                        queue.inTurn = true;
+                        queue.deficit += QUANTUM;
+                    }
+                    if (queue.deficit >= queue.headSize()) {
+                        return queue;
+                    }
+                    waiting = true; // still paying off a large aggregate
+                }
+                queue.inTurn = false;
+                backlog.addLast(backlog.pollFirst());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the queue may send now: no other queue for its
+     * destination is in the middle of something, and its destination's
+     * window has room for the next frame. Nothing follows a fragmented
+     * message until every fragment is acknowledged or given up on, so the
+     * receiver knows to stop waiting for the rest of it once it hears more.
+     */
+    private boolean isReady(DestQueue queue, int windowSize) {
+        if (queue.due != null) {
+            return true;
+        }
+        DestQueue holder = queue.destination.holder();
+        if (holder != null && holder != queue) {
+            return false; // sequence numbers must go on the air in order
+        }
+        short dest = queue.destination.dest;
+        if (windowSize <= 1 || dest == -1 || queue.retry != null) {
+            return true;
+        }
+        Peer peer = this.peers.get(dest);
+        if (peer == null || peer.agreement == null) {
+            return true;
+        }
+        return (queue.midMessage || !peer.hasFragments()) && peer.inFlight() < peer.limit(windowSize);
+    }
+
+    /**
+     * Put a stop-and-wait frame that went unanswered back in front of its queue
+     */
+    private void requeue(DestQueue queue, Packet pkt, int retries, List<Message> messages) {
+        synchronized (this.destinations) {
+            queue.retry = pkt;
+            queue.retries = retries;
+            queue.retryMessages = messages;
+            this.endTurn(queue);
+        }
+    }
+
+    /**
+     * Send a queue to the back of its priority's backlog. A destination that
+     * is not answering gets one attempt per round rather than a full quantum.
+     */
+    private void endTurn(DestQueue queue) {
+        queue.inTurn = false;
+        if (queue.backlogged) {
+            this.categories[queue.priority].backlog.remove(queue);
+            queue.backlogged = false;
+        }
+        this.addToBacklog(queue);
+    }
+
+    /**
+     * Put a queue that has something to send on its priority's backlog
+     */
+    private void addToBacklog(DestQueue queue) {
+        if (!queue.backlogged) {
+            queue.backlogged = true;
+            this.categories[queue.priority].backlog.addLast(queue);
+        }
+    }
+
+    /**
+     * Take the head of a destination's queue. With aggregation on, the data
+     * queued right behind it is packed into the same frame.
+     * 
+     * @param maxFrames the most data packets the frame may carry
+     * @param carried   the messages the frame carries are added to this
+     */
+    private Packet poll(DestQueue queue, int maxFrames, List<Message> carried) {
+        Packet head = this.take(queue, carried);
+        if (!this.ll.aggregate || maxFrames < 2 || head.getFrameType() != Packet.DATA) {
+            return head;
+        }
+        List<Packet> frames = new ArrayList<>();
+        frames.add(head);
+        int size = Packet.FLAGS_SIZE + Packet.SUBFRAME_HEADER_SIZE + head.dataSize();
+        Packet next;
+        while (frames.size() < maxFrames && (next = queue.packets.peekFirst()) != null
+                && next.getFrameType() == Packet.DATA
+                && size + Packet.SUBFRAME_HEADER_SIZE + next.dataSize() <= Packet.MAX_DATA_SIZE) {
+            frames.add(this.take(queue, carried));
+            size += Packet.SUBFRAME_HEADER_SIZE + next.dataSize();
+        }
+        if (frames.size() == 1) {
+            return head;
+        }
+        this.ll.log("Aggregating " + frames.size() + " packets for MAC " + head.getDest(), LinkLayer.DEBUG);
+        return Packet.aggregate(frames);
+    }
+
+    /**
+     * Returns the earliest retransmit deadline of the windowed frames
+     */
+    private long nextTimeout() {
+        long deadline = Long.MAX_VALUE;
+        synchronized (this.peers) {
+            for (Peer peer : this.peers) {
+                deadline = Math.min(deadline, peer.setupDeadline);
+                for (Outstanding frame : peer.window) {
+                    deadline = Math.min(deadline, frame.deadline);
+                }
+            }
+        }
+        return deadline;
+    }
+
+    /**
+     * Start the retransmit timer of a windowed frame that just went out. Under
+     * a block ACK agreement there is no timer until the frame is covered by a
+     * block ACK request.
+     */
+    private void sentWindowed(Outstanding frame) {
+        synchronized (this.peers) {
+            frame.sent = true;
+            frame.sentAt = this.ackTimer;
+            Peer peer = this.peers.get(frame.pkt.getDest());
+            if (peer.agreement != Agreement.AGREED) {
+                frame.deadline = this.ackTimer + peer.rtt.timeout(frame.retries);
+            }
+        }
+        this.dataArrived.signal();
+    }
+
+    /**
+     * Start the timers covered by a block ACK request that just went out
+     */
+    private void requestedBlockAck(Packet bar) {
+        synchronized (this.peers) {
+            Peer peer = this.peers.get(bar.getDest());
+            long deadline = this.ackTimer + peer.rtt.timeout(0);
+            peer.requestedAt = this.ackTimer;
+            if (bar.size() > Packet.MIN_PACKET_SIZE) {
+                peer.setupDeadline = deadline;
+                return;
+            }
+            for (Outstanding frame : peer.window) {
+                if (frame.sent && !frame.covered && frame.deadline == Long.MAX_VALUE) {
+                    frame.covered = true;
+                    frame.deadline = deadline;
+                }
+            }
+        }
+    }
+
+    /**
+     * Handle a block ACK: frames it reports are done, frames it covers but
+     * does not report are resent right away.
+     * 
+     * @param ba the block ACK
+     */
+    public void acknowledgeBlock(Packet ba) {
+        short src = ba.getSource();
+        int start = ba.getSeqNum();
+        long bitmap = ba.getBitmap();
+        long now = this.ll.clock.time();
+        synchronized (this.peers) {
+            Peer peer = this.peers.get(src);
+            if (peer == null) {
+                this.ll.log("Ignoring unexpected block ACK", LinkLayer.DEBUG);
+                return;
+            }
+            if (peer.requestedAt >= 0) {
+                peer.rtt.sample(now - peer.requestedAt);
+                peer.requestedAt = -1;
+            }
+            if (ba.size() > Packet.MIN_PACKET_SIZE + Long.BYTES) {
+                // answer to our setup request
+                if (peer.agreement == Agreement.REQUESTED) {
+                    ByteBuffer setup = ByteBuffer.wrap(ba.extractData(), Long.BYTES, 3);
+                    peer.agreedWindow = setup.getShort();
+                    peer.agreement = setup.get() != 0 ? Agreement.AGREED : Agreement.WINDOWED;
+                    peer.setupDeadline = Long.MAX_VALUE;
+                    this.ll.log("MAC " + src + " agreed to a window of " + peer.agreedWindow
+                            + (peer.agreement == Agreement.AGREED ? " with block ACKs" : ""), LinkLayer.DEBUG);
+                }
+            } else {
+                for (Iterator<Outstanding> it = peer.window.iterator(); it.hasNext();) {
+                    Outstanding frame = it.next();
+                    if (!frame.covered) {
+                        continue;
+                    }
+                    int offset = (frame.pkt.getSeqNum() - start) & (Packet.SEQ_SPACE - 1);
+                    if (offset < Packet.BLOCK_ACK_WINDOW && (bitmap & (1L << offset)) != 0) {
+                        it.remove();
+                        frame.acked = true;
+                        this.categories[frame.queue.priority].reset();
+                        this.ll.status = LinkLayer.TX_DELIVERED;
+                        this.settle(frame.messages, true, frame.retries);
+                    } else {
+                        frame.covered = false;
+                        frame.deadline = now;
+                    }
+                }
+                this.ll.log("Block acknowledged from #" + start, LinkLayer.DEBUG);
+            }
+        }
+        this.dataArrived.signal();
+    }
+
+    /**
+     * Wait for a valid ack or timeout. The timeout comes from the round
+     * trips measured to the destination, which an ACK for a frame sent only
+     * once adds to.
+     * 
+     * @return true once acknowledged or timed out, false after setting
+     *         {@code wait}
+     */
+    private boolean awaitAck(Clock.Wait wait) {
+        if (!this.acknowledged && this.ll.clock.time() < this.deadline) {
+            // receiving thread will wake us if ack arrives
+            wait.on(this.ackArrived, this.deadline);
+            return false;
+        }
+
+        if (this.acknowledged) {
             // Time between end of tx and sender wake
-            this.ll.log("Ack time: " + (System.currentTimeMillis() - this.ackTimer), LinkLayer.TIMING);
+            long ackTime = this.ll.clock.time() - this.ackTimer;
+            if (this.retries == 0) {
+                this.curQueue.destination.rtt.sample(ackTime);
+            }
+            this.ll.log("Ack time: " + ackTime, LinkLayer.TIMING);
+        }
+        return true;
+    }
+
+    /**
+     * Settle a stop-and-wait frame once it is acknowledged or given up on,
+     * or put it back to be resent
+     */
+    private void finishExchange() {
+        if (this.acknowledged || this.retries == RF.dot11RetryLimit) {
+            if (this.retries == RF.dot11RetryLimit) {
+                this.ll.log("Dropping packet after max retries: " + this.curPkt, LinkLayer.ERROR);
+                this.ll.status = LinkLayer.TX_FAILED;
+            } else {
+                this.ll.status = LinkLayer.TX_DELIVERED;
+            }
+            this.settle(this.curMessages, this.acknowledged, this.retries);
+            if (!this.acknowledged) {
+                this.discardRestLocked(this.curMessages);
+            }
+            // transition to data wait
+            this.curCategory.reset();
+            this.retries = 0;
+        } else { // Timeout occurred
+            this.ll.status = LinkLayer.TX_FAILED;
+            if (this.retries++ == 0) {
+                this.curPkt.flagAsResend();
+            }
+            int window = this.curCategory.backOff();
+            this.ll.log("Increased collision window to: " + window, LinkLayer.DEBUG);
+            // transition to data wait, so other destinations get a turn before the resend
+            this.requeue(this.curQueue, this.curPkt, this.retries, this.curMessages);
+        }
+    }
+
+    /**
+     * Give up on a frame whose RTSs all went unanswered. Its delivery reports
+     * the resends it had before, not the RTSs, since the data never went out.
+     */
+    private void unreserved() {
+        if (this.curFrame == null) {
+            this.ll.log("Dropping packet after unanswered RTSs: " + this.curPkt, LinkLayer.ERROR);
+            this.ll.status = LinkLayer.TX_FAILED;
+            this.settle(this.curMessages, false, this.retries);
+            this.discardRestLocked(this.curMessages);
+            this.curCategory.reset();
+            this.retries = 0;
+            return;
+        }
+        synchronized (this.peers) {
+            // dropped by nextFrame() as it times out
+            this.curFrame.unreserved = true;
+            this.curFrame.deadline = this.ll.clock.time();
+        }
+    }
+
+    /**
+     * Returns true if {@code curPkt} is unicast data large enough to reserve
+     * the channel for with an RTS
+     */
+    private boolean needsReservation() {
+        int threshold = this.ll.rtsThreshold;
+        return threshold >= 0 && this.curQueue != null && this.curPkt.getDest() != -1
+                && this.curPkt.dataSize() > threshold;
+    }
+
+    /**
+     * Returns how long the exchange an RTS announces goes on after it: the
+     * CTS, the frame and its ACK, each after a reply gap
+     */
+    private int reservation() {
+        Medium rf = this.ll.rf;
+        long duration = 3 * LinkLayer.REPLY_GAP + rf.airtime(Packet.RESERVATION_SIZE) + rf.airtime(this.curPkt.size())
+                + rf.airtime(Packet.MIN_PACKET_SIZE);
+        return (int) Math.min(duration, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Alerts the sender thread that the CTS answering its RTS arrived
+     * 
+     * @param src MAC address of source
+     */
+    public void clearedToSend(short src) {
+        Packet pkt = this.curPkt;
+        if (this.state == State.AWAITING_CTS && pkt != null && src == pkt.getDest()) {
+            this.cleared = true;
+            this.ackArrived.signal();
+        } else {
+            if (this.ll.logs(LinkLayer.DEBUG)) {
+                this.ll.log("Ignoring unexpected CTS from MAC " + src, LinkLayer.DEBUG);
+            }
+        }
+    }
+
+    /**
+     * Pass the outcome of a frame on to the messages it carried. Futures
+     * complete on the thread that learned the outcome, so what depends on
+     * them directly must not block.
+     * 
+     * @param delivered true if the frame was acknowledged
+     * @param retries   the number of times the frame was resent
+     */
+    private void settle(List<Message> messages, boolean delivered, int retries) {
+        long now = this.ll.clock.time();
+        for (Message message : messages) {
+            message.settle(delivered, retries, now);
+        }
+    }
+
+    /**
+     * Drop what is left of messages that failed because one of their frames
+     * was given up on
+     */
+    private void discardRestLocked(List<Message> messages) {
+        synchronized (this.peers) {
+            synchronized (this.destinations) {
+                this.discardRest(messages);
+            }
+        }
+    }
+
+    /**
+     * Drop what is left of messages that failed because one of their frames
+     * was given up on: the fragments still queued, which would only fail
+     * again at full retry count, and those in the window. The queued ones
+     * give back their place in the queue, their budget and their sequence
+     * numbers. Caller must hold both locks.
+     */
+    private void discardRest(List<Message> messages) {
+        for (Message message : messages) {
+            DestQueue queue = message.queue;
+            if (queue.midMessage && queue.messages.peekFirst() == message) {
+                Packet last = message.packets.get(message.packets.size() - 1);
+                int count = 0;
+                Packet pkt;
+                do {
+                    pkt = queue.packets.pollFirst();
+                    this.queuedBytes.addAndGet(-pkt.size());
+                    count++;
+                } while (pkt != last);
+                queue.midMessage = false;
+                queue.messages.pollFirst();
+                queue.admitted.decrementAndGet();
+                Destination destination = queue.destination;
+                if (!destination.hasPackets()) {
+                    destination.queuedSeqNum.set(destination.seqNum);
+                }
+                this.freedRoom();
+                this.ll.log("Discarding " + count + " unsent fragments of a failed message for MAC "
+                        + destination.dest, LinkLayer.DEBUG);
+            }
+            Peer peer = this.peers.get(queue.destination.dest);
+            if (peer == null) {
+                continue;
+            }
+            for (Iterator<Outstanding> it = peer.window.iterator(); it.hasNext();) {
+                Outstanding frame = it.next();
+                if (frame.messages.contains(message)) {
+                    it.remove();
+                    if (frame.queue.due == frame) {
+                        frame.queue.due = null;
+                    }
+                }
+            }
         }
     }
 
@@ -230,35 +970,321 @@ public class Sender implements Runnable {
      * @return slots
      */
     public int pickSlotWait() {
-        return this.ll.randomWait ? (int) (Math.random() * this.collisionWindow) : this.collisionWindow;
+        int collisionWindow = this.curCategory.collisionWindow;
+        return this.ll.randomWait ? this.ll.random.nextInt(collisionWindow) : collisionWindow;
+    }
+
+    /**
+     * Queue data at normal priority
+     * 
+     * @see #enqueue(short, byte[], int, int)
+     */
+    public boolean enqueue(short dest, byte[] data, int bytesToSend) {
+        return this.enqueue(dest, data, bytesToSend, LinkLayer.PRIORITY_NORMAL);
     }
 
     /**
-     * Create a packet and put it on the outgoing queue if there is room
+     * Create a packet and put it on the destination's queue for the given
+     * priority if there is room there and in the overall budget. Data larger
+     * than a single packet is split into fragments that are queued together.
+     * Data for a destination with compression on is compressed first, unless
+     * that would not save anything. Safe to call from any thread: packets are
+     * numbered and built without a lock and handed to the sender through a
+     * {@link MpscRing}.
      * 
      * 
      * @param dest  MAC address
      * @param data
      * @param bytesToSend
+     * @param priority one of the {@code LinkLayer.PRIORITY_} levels
      * @return true if accepted else false
      */
-    public boolean enqueue(short dest, byte[] data, int bytesToSend) {
-        // get sequence number
-        this.seqNums.putIfAbsent(dest, (short) 0);
-        short seqNum = this.seqNums.get(dest);
-        this.seqNums.put(dest, (short) ((seqNum + 1) & 0xFFF));
-
-        // make packet
-        Packet pkt = new Packet(Packet.DATA, seqNum, dest, this.ll.macAddr, data, bytesToSend);
-        boolean accepted = this.queue.offer(pkt);
+    public boolean enqueue(short dest, byte[] data, int bytesToSend, int priority) {
+        return this.enqueue(dest, data, bytesToSend, priority, null);
+    }
+
+    /**
+     * Queue data as {@link #enqueue(short, byte[], int, int)} does, and
+     * complete the given future once its fate is known
+     * 
+     * @param future completed with the message's {@link Delivery}, or null
+     * @return true if accepted else false
+     */
+    public boolean enqueue(short dest, byte[] data, int bytesToSend, int priority, CompletableFuture<Delivery> future) {
+        Message message = this.prepare(dest, data, bytesToSend, priority, future);
+        return this.submit(message, this.admit(message));
+    }
+
+    /**
+     * Queue data as {@link #enqueue(short, byte[], int, int)} does, but wait
+     * for room instead of failing while the queue is full. Waits are on the
+     * link layer's clock, so this may not be called by a handler run on an
+     * {@link EventLoop}.
+     * 
+     * @param future   completed with the message's {@link Delivery}, or null
+     * @param deadline clock time to give up waiting at, {@code Long.MAX_VALUE}
+     *                 to wait for as long as it takes
+     * @return true if accepted else false
+     * @throws InterruptedException if interrupted while waiting; the data is
+     *                              not queued
+     */
+    public boolean enqueue(short dest, byte[] data, int bytesToSend, int priority, CompletableFuture<Delivery> future,
+            long deadline) throws InterruptedException {
+        Message message = this.prepare(dest, data, bytesToSend, priority, future);
+        boolean accepted = this.admit(message);
+        if (!accepted && deadline > this.ll.clock.time()) {
+            this.waiting.incrementAndGet();
+            try {
+                // counted as waiting before checking, so room freed in between is signaled
+                while (!(accepted = this.admit(message))) {
+                    if (!this.roomFreed.await(deadline)) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                this.release(message);
+                this.ll.log("Outgoing packet was abandoned: interrupted while waiting for room in the queue.",
+                        LinkLayer.STATE);
+                if (message.future != null) {
+                    message.future.completeExceptionally(e);
+                }
+                throw e;
+            } finally {
+                this.waiting.decrementAndGet();
+            }
+        }
+        return this.submit(message, accepted);
+    }
+
+    /**
+     * Turn data into the packets of a message. Data for a destination with
+     * compression on is compressed first, unless that would not save anything.
+     */
+    private Message prepare(short dest, byte[] data, int bytesToSend, int priority, CompletableFuture<Delivery> future) {
+        Set<Short> compressTo = this.ll.compressTo;
+        byte[] compressed = !compressTo.isEmpty() && compressTo.contains(dest)
+                ? Compression.compress(data, bytesToSend) : null;
+        if (compressed != null && compressed.length + Packet.FLAGS_SIZE >= bytesToSend) {
+            compressed = null; // the flags byte would eat the savings
+        }
+        if (compressed != null) {
+            this.ll.log("Compressed " + bytesToSend + " bytes to " + compressed.length, LinkLayer.DEBUG);
+            data = compressed;
+            bytesToSend = compressed.length;
+        }
+        Destination destination = this.destinations.computeIfAbsent(dest, Destination::new);
+
+        // provisional; take() renumbers packets that overtake one another
+        int count = bytesToSend <= Packet.MAX_DATA_SIZE && compressed == null ? 1
+                : (bytesToSend + Packet.FRAGMENT_SIZE - 1) / Packet.FRAGMENT_SIZE;
+        int seqNum = destination.queuedSeqNum.getAndAdd(count);
+
+        // make packets
+        List<Packet> pkts = new ArrayList<>(count);
+        if (count == 1 && compressed == null) {
+            pkts.add(new Packet(Packet.DATA, seqNum, dest, this.ll.macAddr, data, bytesToSend));
+        } else {
+            for (int offset = 0; offset < bytesToSend; offset += Packet.FRAGMENT_SIZE) {
+                int len = Math.min(Packet.FRAGMENT_SIZE, bytesToSend - offset);
+                int fragNum = offset / Packet.FRAGMENT_SIZE;
+                pkts.add(Packet.fragment(seqNum + fragNum, dest, this.ll.macAddr, data, offset, len, fragNum,
+                        offset + len < bytesToSend, compressed != null));
+            }
+        }
+        return new Message(destination.queues[priority], pkts, seqNum, future);
+    }
+
+    /**
+     * Reserve the message's place in its queue and its bytes in the budget,
+     * then hand it over to the sender. A full ring is drained by the caller,
+     * so only the queue depth and budget limit what may wait.
+     * 
+     * @return false if there was no room for it
+     */
+    private boolean admit(Message message) {
+        DestQueue queue = message.queue;
+        if (!reserve(queue.admitted, 1, this.ll.queueDepth)) {
+            return false;
+        }
+        if (!reserve(this.queuedBytes, message.bytes, this.ll.queueBudget)) {
+            queue.admitted.decrementAndGet();
+            this.freedRoom();
+            return false;
+        }
+        MpscRing<Message> ring = this.submitted;
+        if (!ring.offer(message)) {
+            synchronized (this.destinations) {
+                do {
+                    this.drainSubmitted();
+                } while (!(ring = this.submitted).offer(message));
+            }
+        }
+        if (this.submitted != ring) {
+            // resized as we offered; don't leave the message in the old ring
+            synchronized (this.destinations) {
+                this.drain(ring);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replace the ring that hands messages over with one of at least the
+     * given capacity, moving whatever is in the old one onto its queue
+     * 
+     * @return the new capacity
+     */
+    public int resizeRing(int capacity) {
+        synchronized (this.destinations) {
+            MpscRing<Message> old = this.submitted;
+            this.submitted = new MpscRing<>(capacity);
+            this.drain(old);
+            return this.submitted.capacity();
+        }
+    }
+
+    /**
+     * Returns the number of messages that may be handed over before someone
+     * has to move them onto their queues
+     */
+    public int ringCapacity() {
+        return this.submitted.capacity();
+    }
+
+    /**
+     * Add to a count unless that would take it over the limit
+     */
+    private static boolean reserve(AtomicInteger count, int amount, int limit) {
+        int current;
+        do {
+            current = count.get();
+            if (current + amount > limit) {
+                return false;
+            }
+        } while (!count.compareAndSet(current, current + amount));
+        return true;
+    }
+
+    /**
+     * Wake the sender for an accepted message, or hand back the sequence
+     * numbers of a rejected one
+     * 
+     * @return whether it was accepted
+     */
+    private boolean submit(Message message, boolean accepted) {
         if (accepted) {
-            this.ll.log("Queueing packet: " + pkt, LinkLayer.DEBUG);
+            if (this.ll.logs(LinkLayer.DEBUG)) {
+                for (Packet pkt : message.packets) {
+                    this.ll.log("Queueing packet: " + pkt, LinkLayer.DEBUG);
+                }
+            }
+            this.dataArrived.signal();
         } else {
+            this.release(message);
             this.ll.log("Outgoing packet was rejected because queue is full.", LinkLayer.ERROR);
         }
         return accepted;
     }
 
+    /**
+     * Hand back the sequence numbers of a message that was not queued,
+     * unless someone has taken numbers after them
+     */
+    private void release(Message message) {
+        int seqNum = message.firstSeqNum;
+        message.queue.destination.queuedSeqNum.compareAndSet(seqNum + message.packets.size(), seqNum);
+    }
+
+    /**
+     * Move the messages handed over by {@code enqueue()} onto their queues.
+     * Caller must hold the queue lock.
+     */
+    private void drainSubmitted() {
+        this.drain(this.submitted);
+    }
+
+    /**
+     * Move the messages in the given ring onto their queues. A ring that has
+     * been replaced is drained until it is empty, waiting for producers that
+     * claimed a slot in it before it was replaced to fill the slot. Caller
+     * must hold the queue lock.
+     */
+    private void drain(MpscRing<Message> ring) {
+        boolean replaced = ring != this.submitted;
+        Message message;
+        boolean drained = false;
+        while ((message = ring.poll()) != null || (replaced && !ring.isEmpty())) {
+            if (message == null) {
+                Thread.yield();
+                continue;
+            }
+            DestQueue queue = message.queue;
+            queue.packets.addAll(message.packets);
+            queue.messages.addLast(message);
+            this.addToBacklog(queue);
+            drained = true;
+        }
+        if (drained) {
+            this.freedRoom();
+        }
+    }
+
+    /**
+     * Wake the threads waiting in {@code enqueue()}, if any
+     */
+    private void freedRoom() {
+        if (this.waiting.get() > 0) {
+            this.roomFreed.signal();
+        }
+    }
+
+    /**
+     * Take the next packet in scheduling order, ignoring ARQ windows
+     * 
+     * @return the packet, or null if nothing is queued
+     */
+    Packet take() {
+        synchronized (this.destinations) {
+            this.drainSubmitted();
+            DestQueue queue = this.schedule(1);
+            return queue == null || queue.packets.isEmpty() ? null : this.take(queue, new ArrayList<>(1));
+        }
+    }
+
+    /**
+     * Take the head of a queue and give it its destination's next sequence
+     * number, so numbers go on the air in order whatever the priorities did.
+     * Its message's place in the queue is freed once the last fragment is gone.
+     * 
+     * @param carried the packet's message is added to this
+     */
+    private Packet take(DestQueue queue, List<Message> carried) {
+        Packet pkt = queue.packets.pollFirst();
+        Message message = queue.messages.peekFirst();
+        if (message.startedAt < 0) {
+            message.startedAt = this.ll.clock.time();
+        }
+        carried.add(message);
+        Destination destination = queue.destination;
+        if (pkt.getSeqNum() != destination.seqNum) {
+            pkt.setSeqNum(destination.seqNum);
+        }
+        destination.seqNum = (destination.seqNum + 1) & 0xFFF;
+        if (!destination.hasPackets()) {
+            // drained: number the next message from here, so it needs no renumbering
+            destination.queuedSeqNum.set(destination.seqNum);
+        }
+        queue.midMessage = pkt.hasMoreFragments();
+        if (!queue.midMessage) {
+            queue.messages.pollFirst();
+            queue.admitted.decrementAndGet();
+        }
+        this.queuedBytes.addAndGet(-pkt.size());
+        this.freedRoom();
+        queue.deficit -= pkt.size();
+        return pkt;
+    }
+
     /**
      * Alerts the sender thread that a valid ack arrived
      * 
@@ -266,20 +1292,338 @@ public class Sender implements Runnable {
      * @param src    MAC address of source
      */
     public void acknowledgePacket(int seqNum, short src) {
+        synchronized (this.peers) {
+            Peer peer = this.peers.get(src);
+            if (peer != null) {
+                for (Iterator<Outstanding> it = peer.window.iterator(); it.hasNext();) {
+                    Outstanding frame = it.next();
+                    if (frame.pkt.getSeqNum() == seqNum) {
+                        it.remove();
+                        frame.acked = true;
+                        if (frame.retries == 0) {
+                            peer.rtt.sample(this.ll.clock.time() - frame.sentAt);
+                        }
+                        this.categories[frame.queue.priority].reset();
+                        this.ll.status = LinkLayer.TX_DELIVERED;
+                        this.settle(frame.messages, true, frame.retries);
+                        if (this.ll.logs(LinkLayer.DEBUG)) {
+                            this.ll.log("Acknowledged #" + seqNum + " from window", LinkLayer.DEBUG);
+                        }
+                        this.dataArrived.signal();
+                        return;
+                    }
+                }
+            }
+        }
+        synchronized (this.destinations) {
+            Destination destination = this.destinations.get(src);
+            DestQueue queue = destination == null ? null : destination.holder();
+            if (queue != null && queue.retry != null && queue.retry.getSeqNum() == seqNum) {
+                // late ACK for a frame waiting to be resent
+                queue.retry = null;
+                this.categories[queue.priority].reset();
+                this.ll.status = LinkLayer.TX_DELIVERED;
+                this.settle(queue.retryMessages, true, queue.retries);
+                queue.retryMessages = null;
+                if (this.ll.logs(LinkLayer.DEBUG)) {
+                    this.ll.log("Acknowledged #" + seqNum + " before its resend", LinkLayer.DEBUG);
+                }
+                return;
+            }
+        }
         if (this.state == State.AWAITING_ACK) {
             if (seqNum != this.curPkt.getSeqNum()) {
                 this.ll.log("Ignoring ACK with wrong sequence number", LinkLayer.DEBUG);
             } else if (src != this.curPkt.getDest()) {
                 this.ll.log("Ignoring ACK with wrong source address", LinkLayer.DEBUG);
             } else {
-                synchronized (this) {
-                    this.acknowledged = true;
-                    this.notify();
-                }
+                this.acknowledged = true;
+                this.ackArrived.signal();
                 this.ll.log("Acknowledged", LinkLayer.DEBUG);
             }
-        } else {
+        } else if (this.ll.logs(LinkLayer.DEBUG)) {
             this.ll.log("ACK arrived in state: " + this.state, LinkLayer.DEBUG);
         }
     }
+
+    /**
+     * Contention parameters and backlog of one priority, after the access
+     * categories of 802.11e
+     */
+    private static class AccessCategory {
+        /** Inter-frame space before contending */
+        final int aifs;
+        /** Contention window range */
+        final int cwMin, cwMax;
+        volatile int collisionWindow;
+        /** Queues with something to send, in deficit round-robin order */
+        final ArrayDeque<DestQueue> backlog = new ArrayDeque<>();
+
+        AccessCategory(int aifs, int cwMin, int cwMax) {
+            this.aifs = aifs;
+            this.cwMin = cwMin;
+            this.cwMax = cwMax;
+            this.collisionWindow = cwMin;
+        }
+
+        /** Double the contention window, up to its limit */
+        int backOff() {
+            this.collisionWindow = Math.min(2 * this.collisionWindow, this.cwMax);
+            return this.collisionWindow;
+        }
+
+        void reset() {
+            this.collisionWindow = this.cwMin;
+        }
+    }
+
+    /**
+     * The queues of a single destination, one per priority, and the
+     * sequence numbers they share
+     */
+    private static class Destination {
+        final short dest;
+        final DestQueue[] queues;
+        /** Next sequence number to put on the air */
+        int seqNum;
+        /** Next sequence number to give a queued packet, modulo the sequence space */
+        final AtomicInteger queuedSeqNum = new AtomicInteger();
+        final RttEstimator rtt = new RttEstimator(LinkLayer.ACK_TIMEOUT, LinkLayer.MIN_ACK_TIMEOUT, LinkLayer.ACK_TIMEOUT);
+
+        Destination(short dest) {
+            this.dest = dest;
+            this.queues = new DestQueue[LinkLayer.PRIORITY_CONTROL + 1];
+            for (int priority = 0; priority < this.queues.length; priority++) {
+                this.queues[priority] = new DestQueue(this, priority);
+            }
+        }
+
+        /** True if any queue has packets that have not been on the air */
+        boolean hasPackets() {
+            for (DestQueue queue : this.queues) {
+                if (!queue.packets.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * The queue that must send next to this destination, because it has
+         * a frame to resend or is part way through a fragmented message
+         */
+        DestQueue holder() {
+            for (DestQueue queue : this.queues) {
+                if (queue.retry != null || queue.midMessage) {
+                    return queue;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Packets waiting for a single destination at one priority
+     */
+    private static class DestQueue {
+        final Destination destination;
+        final int priority;
+        final ArrayDeque<Packet> packets = new ArrayDeque<>();
+        /** Messages (not fragments) in {@code packets}, the head's first packet at the head of {@code packets} */
+        final ArrayDeque<Message> messages = new ArrayDeque<>();
+        /** Messages accepted for this queue and not yet taken whole, counting those not moved onto it yet */
+        final AtomicInteger admitted = new AtomicInteger();
+        /** True after sending a fragment that has more following it */
+        boolean midMessage;
+        /** Stop-and-wait frame that went unanswered and its retries so far; sent before {@code packets} */
+        Packet retry;
+        int retries;
+        List<Message> retryMessages;
+        /** Windowed frame whose retransmit timer has expired; sent before anything else */
+        Outstanding due;
+        /** Bytes this queue may still send in its current round */
+        int deficit;
+        /** True while on the backlog */
+        boolean backlogged;
+        /** True while at the head of the backlog with this round's credit added */
+        boolean inTurn;
+
+        DestQueue(Destination destination, int priority) {
+            this.destination = destination;
+            this.priority = priority;
+        }
+
+        boolean isEmpty() {
+            return this.retry == null && this.due == null && this.packets.isEmpty();
+        }
+
+        /** Size of the frame this queue would send next */
+        int headSize() {
+            if (this.due != null) {
+                return this.due.pkt.size();
+            }
+            return this.retry != null ? this.retry.size() : this.packets.peekFirst().size();
+        }
+    }
+
+    /**
+     * Window negotiation state with a destination. Until it has agreed to a
+     * window it does not know to restore sequence order, so only one frame
+     * may be outstanding.
+     */
+    private enum Agreement {
+        REQUESTED,
+        /** Agreed to a window with block ACKs */
+        AGREED,
+        /** Agreed to a window with an ACK per frame */
+        WINDOWED,
+        /** Never answered */
+        REFUSED
+    }
+
+    /**
+     * Windowed transmission state for a single destination
+     */
+    private static class Peer {
+        final Destination destination;
+        /** Frames taken off the queue and not yet acknowledged, in sequence order */
+        final List<Outstanding> window = new ArrayList<>();
+        /** Shared with the destination's queues */
+        final RttEstimator rtt;
+        /** Window negotiation state, null until we have offered */
+        Agreement agreement;
+        long setupDeadline = Long.MAX_VALUE;
+        int setupRetries;
+        /** The window the destination agreed to */
+        int agreedWindow = 1;
+        /** When the last block ACK request went out, -1 once answered */
+        long requestedAt = -1;
+
+        Peer(Destination destination) {
+            this.destination = destination;
+            this.rtt = destination.rtt;
+        }
+
+        /** The number of frames allowed in the window */
+        int limit(int windowSize) {
+            return Math.min(windowSize, this.agreedWindow);
+        }
+
+        /** The number of data packets in the window, counting each subframe of an aggregate */
+        int inFlight() {
+            int count = 0;
+            for (Outstanding frame : this.window) {
+                count += frame.count;
+            }
+            return count;
+        }
+
+        /** True if part of a fragmented message is in the window */
+        boolean hasFragments() {
+            for (Outstanding frame : this.window) {
+                if (frame.pkt.isFragment()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** True if a block ACK request is waiting on an answer */
+        boolean hasRequestedBlockAck() {
+            for (Outstanding frame : this.window) {
+                if (frame.covered) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** True if some frame has been sent but not yet covered by a block ACK request */
+        boolean hasUnrequested() {
+            for (Outstanding frame : this.window) {
+                if (frame.sent && !frame.covered && frame.deadline == Long.MAX_VALUE) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A windowed frame that has been sent but not yet acknowledged
+     */
+    private static class Outstanding {
+        final Packet pkt;
+        /** The queue it was taken from */
+        final DestQueue queue;
+        /** Sequence numbers used by the frame */
+        final int count;
+        /** The messages it carries */
+        final List<Message> messages;
+        /** Retransmit deadline on the clock, or MAX_VALUE while none is running */
+        long deadline = Long.MAX_VALUE;
+        /** End of the last transmission */
+        long sentAt;
+        int retries;
+        /** True once on the air */
+        boolean sent;
+        /** True while a block ACK request covering this frame is unanswered */
+        boolean covered;
+        /** True once given up on because its RTSs went unanswered */
+        boolean unreserved;
+        volatile boolean acked;
+
+        Outstanding(Packet pkt, DestQueue queue, List<Message> messages) {
+            this.pkt = pkt;
+            this.queue = queue;
+            this.messages = messages;
+            this.count = pkt.countFrames();
+        }
+    }
+
+    /**
+     * A queued message and the future waiting on its outcome
+     */
+    private static class Message {
+        /** The queue it goes on */
+        final DestQueue queue;
+        /** Its packets as built by {@code enqueue()} */
+        final List<Packet> packets;
+        /** Provisional sequence number of its first packet */
+        final int firstSeqNum;
+        /** Bytes it takes from the queue budget */
+        final int bytes;
+        /** Completed once every packet is acknowledged or one is given up on, may be null */
+        final CompletableFuture<Delivery> future;
+        /** Packets not yet acknowledged */
+        int unacked;
+        int retries;
+        /** Clock time its first packet was taken off the queue, -1 before */
+        long startedAt = -1;
+
+        Message(DestQueue queue, List<Packet> packets, int firstSeqNum, CompletableFuture<Delivery> future) {
+            this.queue = queue;
+            this.packets = packets;
+            this.firstSeqNum = firstSeqNum;
+            int bytes = 0;
+            for (Packet pkt : packets) {
+                bytes += pkt.size();
+            }
+            this.bytes = bytes;
+            this.unacked = packets.size();
+            this.future = future;
+        }
+
+        void settle(boolean delivered, int retries, long now) {
+            Delivery result;
+            synchronized (this) {
+                this.retries += retries;
+                if (this.future == null || this.future.isDone() || (delivered && --this.unacked > 0)) {
+                    return;
+                }
+                result = new Delivery(delivered, this.retries, now - this.startedAt);
+            }
+            this.future.complete(result);
+        }
+    }
 }
@@ -0,0 +1,324 @@
+package wifi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in-process stand-in for the multicast RF layer. Any number of stations
+ * can be {@link #attach() attached} to one medium, each getting its own
+ * {@link Medium} view of the shared channel. The medium models:
+ * <ul>
+ * <li>airtime: a frame occupies the channel for {@link #airtime(int)} ms, and
+ * {@code transmit()} blocks for that long just like {@code RF.transmit()}</li>
+ * <li>carrier sense: {@code inUse()} is true while any frame is on the air,
+ * starting {@link #SENSE_DELAY} ms after the frame began, and every station
+ * is told when that changes</li>
+ * <li>collisions: frames whose airtime overlaps are lost to every receiver, so
+ * stations that start within the sense delay of each other collide</li>
+ * <li>loss: each delivery is independently dropped with a fixed probability</li>
+ * </ul>
+ * This lets many {@link LinkLayer} stations run in a single JVM without a
+ * network, e.g. for load testing. All time on the medium is kept by a
+ * {@link Clock}; stations should be given the same clock as the medium. On an
+ * {@link EventLoop} the handler form of {@code transmit()} returns at once and
+ * the rest of the frame runs as events of the loop.
+ */
+public class SimulatedMedium {
+    /** Airtime per byte and per-frame overhead of the RF layer. */
+    public static final int MS_PER_BYTE = 100, HEADER_BYTES = 3;
+    /** Time it takes other stations to notice that a frame has started */
+    public static final int SENSE_DELAY = 1;
+
+    private final Clock clock;
+    private final int msPerByte;
+    private final double lossRate;
+    private final Random random;
+    private final long epoch;
+    private final List<Station> stations;
+    /** Frames currently (or very recently) on the air, guarded by {@code this} */
+    private final List<Frame> onAir;
+
+    // statistics, guarded by this
+    private long transmissions;
+    private long collisions;
+    private long losses;
+    private long deliveries;
+
+    /**
+     * Create a lossless medium with the airtime of the RF layer.
+     */
+    public SimulatedMedium() {
+        this(TimerWheel.shared(), MS_PER_BYTE, 0.0, System.nanoTime());
+    }
+
+    /**
+     * @param clock     the clock keeping time on the medium
+     * @param msPerByte airtime of a single byte
+     * @param lossRate  probability in [0, 1] that a frame is lost on its way to
+     *                  a single receiver
+     * @param seed      seed for the loss process
+     */
+    public SimulatedMedium(Clock clock, int msPerByte, double lossRate, long seed) {
+        if (msPerByte < 0 || lossRate < 0 || lossRate > 1) {
+            throw new IllegalArgumentException("msPerByte: " + msPerByte + ", lossRate: " + lossRate);
+        }
+        this.clock = clock;
+        this.msPerByte = msPerByte;
+        this.lossRate = lossRate;
+        this.random = new Random(seed);
+        this.epoch = clock.time();
+        this.stations = new CopyOnWriteArrayList<>();
+        this.onAir = new ArrayList<>();
+    }
+
+    /**
+     * Attach a new station to this medium.
+     *
+     * @return the station's view of the channel
+     */
+    public Medium attach() {
+        return this.attach(0);
+    }
+
+    /**
+     * Attach a new station whose clock runs ahead of the medium's clock by the
+     * given offset (useful for exercising beacon synchronization).
+     *
+     * @param clockOffset offset in ms
+     * @return the station's view of the channel
+     */
+    public Medium attach(long clockOffset) {
+        Station station = new Station(clockOffset);
+        this.stations.add(station);
+        return station;
+    }
+
+    /**
+     * Returns the clock keeping time on this medium
+     */
+    public Clock getClock() {
+        return this.clock;
+    }
+
+    /**
+     * The time in ms a frame of the given length occupies the channel.
+     */
+    public long airtime(int len) {
+        return (long) (len + HEADER_BYTES) * this.msPerByte;
+    }
+
+    public synchronized long getTransmissions() {
+        return this.transmissions;
+    }
+
+    public synchronized long getCollisions() {
+        return this.collisions;
+    }
+
+    public synchronized long getLosses() {
+        return this.losses;
+    }
+
+    public synchronized long getDeliveries() {
+        return this.deliveries;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "transmissions: " + this.transmissions
+                + ", collisions: " + this.collisions
+                + ", losses: " + this.losses
+                + ", deliveries: " + this.deliveries;
+    }
+
+    private long now() {
+        return this.clock.time() - this.epoch;
+    }
+
+    /**
+     * Put a frame on the air, marking it and anything it overlaps as collided.
+     */
+    private synchronized Frame begin(Station sender, byte[] data) {
+        long start = this.now();
+        Frame frame = new Frame(sender, data, start, start + this.airtime(data.length));
+        for (Frame other : this.onAir) {
+            if (other.end > start) {
+                if (!other.collided) {
+                    this.collisions++;
+                }
+                other.collided = true;
+                frame.collided = true;
+            }
+        }
+        if (frame.collided) {
+            this.collisions++;
+        }
+        this.onAir.add(frame);
+        this.transmissions++;
+        return frame;
+    }
+
+    /**
+     * Take a frame off the air and hand it to every other station
+     */
+    private void end(Frame frame) {
+        List<Station> receivers = new ArrayList<>(this.stations.size());
+        synchronized (this) {
+            this.onAir.remove(frame);
+            for (Station station : this.stations) {
+                if (frame.collided) {
+                    break;
+                }
+                if (station == frame.sender) {
+                    continue;
+                }
+                if (this.lossRate > 0 && this.random.nextDouble() < this.lossRate) {
+                    this.losses++;
+                } else {
+                    this.deliveries++;
+                    receivers.add(station);
+                }
+            }
+        }
+        for (Station station : receivers) {
+            station.inbox.add(frame.data.clone());
+            station.arrival.signal();
+        }
+        this.changed();
+    }
+
+    /**
+     * Tell every station that carrier sense may read differently now
+     */
+    private void changed() {
+        for (Station station : this.stations) {
+            for (Runnable listener : station.listeners) {
+                listener.run();
+            }
+        }
+    }
+
+    private synchronized boolean busy() {
+        long now = this.now();
+        for (Frame frame : this.onAir) {
+            if (frame.start + SENSE_DELAY <= now && frame.end > now) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A single transmission on the channel
+     */
+    private static class Frame {
+        final Station sender;
+        final byte[] data;
+        final long start, end;
+        boolean collided;
+
+        Frame(Station sender, byte[] data, long start, long end) {
+            this.sender = sender;
+            this.data = data;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * One station's view of the shared channel
+     */
+    private class Station implements Medium {
+        private final Queue<byte[]> inbox = new ConcurrentLinkedQueue<>();
+        private final Clock.Signal arrival = SimulatedMedium.this.clock.newSignal();
+        private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+        private final long clockOffset;
+
+        Station(long clockOffset) {
+            this.clockOffset = clockOffset;
+        }
+
+        @Override
+        public int transmit(byte[] data) {
+            Frame frame = SimulatedMedium.this.begin(this, data.clone());
+            try {
+                // the channel reads busy once the other stations can sense the frame
+                long sensed = Math.min(frame.start + SENSE_DELAY, frame.end);
+                SimulatedMedium.this.clock.sleepUntil(sensed + SimulatedMedium.this.epoch);
+                SimulatedMedium.this.changed();
+                SimulatedMedium.this.clock.sleepUntil(frame.end + SimulatedMedium.this.epoch);
+            } catch (InterruptedException e) {
+                // the frame is cut short; nobody receives it
+                Thread.currentThread().interrupt();
+                synchronized (SimulatedMedium.this) {
+                    frame.collided = true;
+                }
+            }
+            SimulatedMedium.this.end(frame);
+            return data.length;
+        }
+
+        @Override
+        public int transmit(byte[] data, Clock.Wait wait) {
+            if (!(SimulatedMedium.this.clock instanceof EventLoop)) {
+                return this.transmit(data);
+            }
+            // the loop runs the rest of the frame, as transmit() does on the sender's thread
+            EventLoop loop = (EventLoop) SimulatedMedium.this.clock;
+            Frame frame = SimulatedMedium.this.begin(this, data.clone());
+            long epoch = SimulatedMedium.this.epoch;
+            loop.schedule(Math.min(frame.start + SENSE_DELAY, frame.end) + epoch, SimulatedMedium.this::changed);
+            loop.schedule(frame.end + epoch, () -> SimulatedMedium.this.end(frame));
+            wait.until(frame.end + epoch);
+            return data.length;
+        }
+
+        @Override
+        public byte[] receive(Clock.Wait wait) {
+            byte[] data = this.inbox.poll();
+            if (data == null) {
+                wait.on(this.arrival, Long.MAX_VALUE);
+            }
+            return data;
+        }
+
+        @Override
+        public byte[] receive() {
+            try {
+                byte[] data;
+                while ((data = this.inbox.poll()) == null) {
+                    this.arrival.await(Long.MAX_VALUE);
+                }
+                return data;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        @Override
+        public boolean inUse() {
+            return SimulatedMedium.this.busy();
+        }
+
+        @Override
+        public boolean onChange(Runnable listener) {
+            this.listeners.add(listener);
+            return true;
+        }
+
+        @Override
+        public long airtime(int len) {
+            return SimulatedMedium.this.airtime(len);
+        }
+
+        @Override
+        public long clock() {
+            return SimulatedMedium.this.now() + this.clockOffset;
+        }
+    }
+}
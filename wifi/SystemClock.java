@@ -0,0 +1,86 @@
+package wifi;
+
+/**
+ * A {@link Clock} backed by the monotonic system timer. Waits sleep for most of
+ * the interval and then spin for the last couple of milliseconds so that
+ * deadlines are hit precisely.
+ */
+public class SystemClock implements Clock {
+    /** Waits shorter than this many ms are performed by spinning */
+    private static final long BUSY_WAIT_TIME = 2;
+
+    @Override
+    public long time() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    @Override
+    public void sleepUntil(long time) throws InterruptedException {
+        // sleep wait
+        long sleepTime = time - BUSY_WAIT_TIME - this.time();
+        if (sleepTime > 0) {
+            Thread.sleep(sleepTime);
+        }
+
+        // busy wait
+        while (this.time() < time) {
+            Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    public Signal newSignal() {
+        return new MonitorSignal();
+    }
+
+    @Override
+    public Thread start(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * A {@link Clock.Signal} implemented with an object monitor
+     */
+    private class MonitorSignal implements Signal {
+        private boolean permit;
+        private int waiters;
+        private long generation;
+
+        @Override
+        public synchronized boolean await(long deadline) throws InterruptedException {
+            if (this.permit) {
+                this.permit = false;
+                return true;
+            }
+            long gen = this.generation;
+            this.waiters++;
+            try {
+                long remaining;
+                while (this.generation == gen) {
+                    if (deadline == Long.MAX_VALUE) {
+                        this.wait();
+                    } else if ((remaining = deadline - SystemClock.this.time()) > 0) {
+                        this.wait(remaining);
+                    } else {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                this.waiters--;
+            }
+        }
+
+        @Override
+        public synchronized void signal() {
+            if (this.waiters == 0) {
+                this.permit = true;
+            } else {
+                this.generation++;
+                this.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package wifi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link Clock} on the system timer whose deadlines are all kept in one
+ * hashed timing wheel with 1 ms ticks. A single wheel thread sleeps until the
+ * earliest deadline, spins only for its last {@link #SPIN_NANOS} ns, and then
+ * unparks every thread whose deadline has passed. Waiting threads simply park,
+ * so however many stations share a wheel, at most one thread is ever spinning.
+ * <p>
+ * The wheel keeps lateness statistics: how long after its deadline each timed
+ * wait actually resumed.
+ */
+public class TimerWheel implements Clock {
+    /** Ticks per revolution; deadlines further out wait in their bucket for later revolutions */
+    private static final int WHEEL_SIZE = 512, MASK = WHEEL_SIZE - 1;
+    /** The wheel thread parks until this close to a deadline and spins the rest */
+    private static final long SPIN_NANOS = 200_000;
+    private static final long NANOS_PER_TICK = 1_000_000;
+
+    private static TimerWheel shared;
+
+    /** Timers by deadline tick modulo the wheel size, guarded by this */
+    private final List<Timer>[] buckets;
+    private int pending;
+    /** Every deadline up to this tick has fired */
+    private long firedTick;
+    /** The tick the wheel thread is sleeping towards, MAX_VALUE while idle */
+    private volatile long targetTick = Long.MAX_VALUE;
+    private final Thread thread;
+
+    // lateness statistics
+    private final LongAdder wakeups = new LongAdder();
+    private final LongAdder totalLateness = new LongAdder();
+    private final AtomicLong maxLateness = new AtomicLong();
+
+    /**
+     * Returns the wheel shared by every station in this JVM that does not
+     * bring its own clock
+     */
+    public static synchronized TimerWheel shared() {
+        if (shared == null) {
+            shared = new TimerWheel();
+        }
+        return shared;
+    }
+
+    @SuppressWarnings("unchecked")
+    public TimerWheel() {
+        this.buckets = (List<Timer>[]) new List<?>[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            this.buckets[i] = new ArrayList<>();
+        }
+        this.firedTick = this.time();
+        this.thread = new Thread(this::turn, "TimerWheel");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public long time() {
+        return System.nanoTime() / NANOS_PER_TICK;
+    }
+
+    @Override
+    public void sleepUntil(long time) throws InterruptedException {
+        if (time <= this.time()) {
+            return;
+        }
+        Timer timer = new Timer(time);
+        this.add(timer);
+        this.park(timer);
+    }
+
+    @Override
+    public Signal newSignal() {
+        return new WheelSignal();
+    }
+
+    @Override
+    public Thread start(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Returns the number of timed waits that ran to their deadline
+     */
+    public long getWakeups() {
+        return this.wakeups.sum();
+    }
+
+    /**
+     * Returns how late timed waits resumed on average, in microseconds
+     */
+    public double getMeanLateness() {
+        long n = this.wakeups.sum();
+        return n == 0 ? 0 : this.totalLateness.sum() / 1e3 / n;
+    }
+
+    /**
+     * Returns the latest any timed wait resumed, in microseconds
+     */
+    public double getMaxLateness() {
+        return this.maxLateness.get() / 1e3;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("wakeups: %d, lateness mean: %.1f us, max: %.1f us", this.getWakeups(),
+                this.getMeanLateness(), this.getMaxLateness());
+    }
+
+    /**
+     * Put a timer on the wheel, or fire it right away if its tick has passed
+     */
+    private void add(Timer timer) {
+        synchronized (this) {
+            if (timer.tick <= this.firedTick) {
+                timer.done = true;
+                return;
+            }
+            this.buckets[(int) (timer.tick & MASK)].add(timer);
+            this.pending++;
+            if (timer.tick >= this.targetTick) {
+                return;
+            }
+            this.targetTick = timer.tick;
+        }
+        LockSupport.unpark(this.thread);
+    }
+
+    private synchronized void cancel(Timer timer) {
+        if (this.buckets[(int) (timer.tick & MASK)].remove(timer)) {
+            this.pending--;
+        }
+    }
+
+    /**
+     * Park the calling thread until its timer fires or is signaled
+     */
+    private void park(Timer timer) throws InterruptedException {
+        while (!timer.done) {
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                this.cancel(timer);
+                throw new InterruptedException();
+            }
+        }
+        if (!timer.signaled) {
+            long lateness = Math.max(0, System.nanoTime() - timer.tick * NANOS_PER_TICK);
+            this.wakeups.increment();
+            this.totalLateness.add(lateness);
+            this.maxLateness.accumulateAndGet(lateness, Math::max);
+        }
+    }
+
+    /**
+     * Body of the wheel thread
+     */
+    private void turn() {
+        List<Timer> due = new ArrayList<>();
+        while (true) {
+            long target = this.targetTick;
+            if (target == Long.MAX_VALUE) {
+                LockSupport.park(this);
+                continue;
+            }
+            long remaining = target * NANOS_PER_TICK - System.nanoTime();
+            if (remaining > SPIN_NANOS) {
+                // an earlier deadline unparks us
+                LockSupport.parkNanos(this, remaining - SPIN_NANOS);
+                continue;
+            }
+            while (System.nanoTime() < target * NANOS_PER_TICK) {
+                Thread.onSpinWait();
+            }
+
+            this.expire(this.time(), due);
+            for (Timer timer : due) {
+                LockSupport.unpark(timer.thread);
+            }
+            due.clear();
+        }
+    }
+
+    /**
+     * Take every timer up to the given tick off the wheel and aim at the next
+     */
+    private synchronized void expire(long now, List<Timer> due) {
+        // a full revolution visits every bucket
+        long from = Math.max(this.firedTick + 1, now - MASK);
+        for (long tick = from; tick <= now && this.pending > 0; tick++) {
+            List<Timer> bucket = this.buckets[(int) (tick & MASK)];
+            for (int i = bucket.size() - 1; i >= 0; i--) {
+                Timer timer = bucket.get(i);
+                if (timer.tick <= now) {
+                    bucket.remove(i);
+                    this.pending--;
+                    timer.done = true;
+                    due.add(timer);
+                }
+            }
+        }
+        this.firedTick = now;
+        this.targetTick = this.nextTick();
+    }
+
+    /**
+     * Returns the earliest pending deadline, or MAX_VALUE if there is none.
+     * Caller must hold the lock.
+     */
+    private long nextTick() {
+        if (this.pending == 0) {
+            return Long.MAX_VALUE;
+        }
+        for (long tick = this.firedTick + 1; tick <= this.firedTick + WHEEL_SIZE; tick++) {
+            for (Timer timer : this.buckets[(int) (tick & MASK)]) {
+                if (timer.tick <= tick) {
+                    return tick;
+                }
+            }
+        }
+        // nothing within a revolution
+        long next = Long.MAX_VALUE;
+        for (List<Timer> bucket : this.buckets) {
+            for (Timer timer : bucket) {
+                next = Math.min(next, timer.tick);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * A thread waiting for a deadline
+     */
+    private static class Timer {
+        final Thread thread = Thread.currentThread();
+        final long tick;
+        volatile boolean done;
+        /** Woken by a signal rather than the deadline */
+        volatile boolean signaled;
+
+        Timer(long tick) {
+            this.tick = tick;
+        }
+    }
+
+    /**
+     * A {@link Clock.Signal} whose deadlines are kept on the wheel
+     */
+    private class WheelSignal implements Signal {
+        private final List<Timer> waiters = new ArrayList<>();
+        private boolean permit;
+
+        @Override
+        public boolean await(long deadline) throws InterruptedException {
+            Timer timer = new Timer(deadline);
+            synchronized (this) {
+                if (this.permit) {
+                    this.permit = false;
+                    return true;
+                }
+                if (deadline <= TimerWheel.this.time()) {
+                    return false;
+                }
+                this.waiters.add(timer);
+            }
+            try {
+                if (deadline != Long.MAX_VALUE) {
+                    TimerWheel.this.add(timer);
+                }
+                TimerWheel.this.park(timer);
+            } finally {
+                synchronized (this) {
+                    this.waiters.remove(timer);
+                }
+            }
+            if (timer.signaled && deadline != Long.MAX_VALUE) {
+                TimerWheel.this.cancel(timer);
+            }
+            return timer.signaled;
+        }
+
+        @Override
+        public void signal() {
+            List<Timer> woken;
+            synchronized (this) {
+                if (this.waiters.isEmpty()) {
+                    this.permit = true;
+                    return;
+                }
+                woken = new ArrayList<>(this.waiters);
+                this.waiters.clear();
+                for (Timer timer : woken) {
+                    timer.signaled = true;
+                }
+            }
+            for (Timer timer : woken) {
+                timer.done = true;
+                LockSupport.unpark(timer.thread);
+            }
+        }
+    }
+}
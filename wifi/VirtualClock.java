@@ -0,0 +1,258 @@
+package wifi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A discrete-event {@link Clock}. Time only moves when every thread started by
+ * this clock is blocked in it, and then jumps straight to the earliest pending
+ * deadline, so hours of protocol time pass in moments of real time.
+ * <p>
+ * Only one of the clock's threads runs at a time. Runnable threads are resumed
+ * in the order they became runnable and deadlines are served in the order they
+ * were set, which together with {@link #newRandom(long) seeded randomness}
+ * makes every run with the same inputs identical.
+ * <p>
+ * The clock does nothing until {@link #runUntil(long)} is called. Between calls
+ * all of its threads are parked, so the calling thread may safely set up or
+ * inspect the simulation (e.g. call {@code LinkLayer.send()}). Threads started
+ * by this clock must never block on anything other than this clock; in
+ * particular it should only be combined with a {@link SimulatedMedium} built on
+ * the same clock.
+ */
+public class VirtualClock implements Clock {
+    private final long seed;
+    private final ThreadLocal<Waiter> self;
+    /** Threads ready to run, in the order they were woken */
+    private final ArrayDeque<Waiter> ready;
+    /** Threads waiting on a deadline, earliest first */
+    private final PriorityQueue<Waiter> timed;
+
+    private volatile long now;
+    private volatile Thread owner;
+    private long limit;
+    private boolean running;
+    private long sequence;
+
+    /**
+     * Create a virtual clock starting at time 0.
+     *
+     * @param seed seed from which every station's randomness is derived
+     */
+    public VirtualClock(long seed) {
+        this.seed = seed;
+        this.self = new ThreadLocal<>();
+        this.ready = new ArrayDeque<>();
+        this.timed = new PriorityQueue<>((a, b) -> a.deadline != b.deadline
+                ? Long.compare(a.deadline, b.deadline)
+                : Long.compare(a.sequence, b.sequence));
+    }
+
+    @Override
+    public long time() {
+        return this.now;
+    }
+
+    /**
+     * Run the simulation until the given time, or until nothing is left to
+     * happen before it. Must not be called from a thread started by this clock.
+     *
+     * @param time virtual time to stop at
+     * @throws InterruptedException
+     */
+    public synchronized void runUntil(long time) throws InterruptedException {
+        if (this.self.get() != null) {
+            throw new IllegalStateException("runUntil called from a simulated thread");
+        }
+        this.limit = time;
+        this.running = true;
+        try {
+            if (this.owner == null) {
+                this.dispatch();
+            }
+            while (this.owner != null) {
+                this.wait();
+            }
+            this.now = Math.max(this.now, time);
+        } finally {
+            this.running = false;
+        }
+    }
+
+    @Override
+    public void sleepUntil(long time) throws InterruptedException {
+        Waiter waiter = this.current();
+        synchronized (this) {
+            if (time <= this.now) {
+                return;
+            }
+            waiter.deadline = time;
+            this.schedule(waiter);
+            this.release();
+        }
+        this.acquire(waiter);
+    }
+
+    @Override
+    public Signal newSignal() {
+        return new VirtualSignal();
+    }
+
+    @Override
+    public synchronized Thread start(Runnable task, String name) {
+        Waiter waiter = new Waiter();
+        Thread thread = new Thread(() -> {
+            this.self.set(waiter);
+            this.acquire(waiter);
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    this.release();
+                }
+            }
+        }, name);
+        // parked simulation threads should not keep the JVM alive
+        thread.setDaemon(true);
+        waiter.thread = thread;
+        this.ready.add(waiter);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public Random newRandom(long salt) {
+        return new Random(this.seed * 31 + salt);
+    }
+
+    private Waiter current() {
+        Waiter waiter = this.self.get();
+        if (waiter == null) {
+            throw new IllegalStateException("Only threads started by a VirtualClock may wait on it");
+        }
+        return waiter;
+    }
+
+    private void schedule(Waiter waiter) {
+        waiter.sequence = this.sequence++;
+        this.timed.add(waiter);
+    }
+
+    /**
+     * Give up the right to run, handing it to the next runnable thread.
+     * Caller must hold the lock.
+     */
+    private void release() {
+        this.owner = null;
+        if (this.running) {
+            this.dispatch();
+        }
+    }
+
+    /**
+     * Pick the next thread to run, advancing time if nobody is runnable.
+     * Caller must hold the lock and {@code owner} must be null.
+     */
+    private void dispatch() {
+        while (this.ready.isEmpty()) {
+            Waiter next = this.timed.peek();
+            if (next == null || next.deadline > this.limit) {
+                // quiescent: let runUntil return
+                this.notifyAll();
+                return;
+            }
+            this.now = Math.max(this.now, next.deadline);
+            while ((next = this.timed.peek()) != null && next.deadline <= this.now) {
+                this.timed.poll();
+                this.wake(next, false);
+            }
+        }
+        Waiter next = this.ready.poll();
+        this.owner = next.thread;
+        LockSupport.unpark(next.thread);
+    }
+
+    /**
+     * Move a waiting thread to the run queue. Caller must hold the lock.
+     */
+    private void wake(Waiter waiter, boolean signaled) {
+        if (waiter.signal != null) {
+            waiter.signal.waiters.remove(waiter);
+            waiter.signal = null;
+        }
+        waiter.signaled = signaled;
+        this.ready.add(waiter);
+    }
+
+    /**
+     * Park until this thread is given the right to run
+     */
+    private void acquire(Waiter waiter) {
+        while (this.owner != waiter.thread) {
+            LockSupport.park(this);
+        }
+    }
+
+    /**
+     * Book-keeping for a single simulated thread
+     */
+    private static class Waiter {
+        Thread thread;
+        long deadline;
+        long sequence;
+        VirtualSignal signal;
+        boolean signaled;
+    }
+
+    /**
+     * A {@link Clock.Signal} whose waiters are scheduled by this clock
+     */
+    private class VirtualSignal implements Signal {
+        private final List<Waiter> waiters = new ArrayList<>();
+        private boolean permit;
+
+        @Override
+        public boolean await(long deadline) throws InterruptedException {
+            Waiter waiter = VirtualClock.this.current();
+            synchronized (VirtualClock.this) {
+                if (this.permit) {
+                    this.permit = false;
+                    return true;
+                }
+                if (deadline <= VirtualClock.this.now) {
+                    return false;
+                }
+                waiter.signal = this;
+                this.waiters.add(waiter);
+                if (deadline != Long.MAX_VALUE) {
+                    waiter.deadline = deadline;
+                    VirtualClock.this.schedule(waiter);
+                }
+                VirtualClock.this.release();
+            }
+            VirtualClock.this.acquire(waiter);
+            return waiter.signaled;
+        }
+
+        @Override
+        public void signal() {
+            synchronized (VirtualClock.this) {
+                if (this.waiters.isEmpty()) {
+                    this.permit = true;
+                    return;
+                }
+                for (Waiter waiter : new ArrayList<>(this.waiters)) {
+                    VirtualClock.this.timed.remove(waiter);
+                    VirtualClock.this.wake(waiter, true);
+                }
+                if (VirtualClock.this.owner == null && VirtualClock.this.running) {
+                    VirtualClock.this.dispatch();
+                }
+            }
+        }
+    }
+}